@@ -0,0 +1,520 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Runs one Simpletron program over many sets of input at once.
+ *
+ * Memory is laid out as memory[address][lane], with one accumulator per lane. Lanes
+ * at the same PC form a group, which fetches and decodes each instruction once and
+ * executes it for all its lanes in one loop. While a group holds every lane those
+ * loops run over whole rows, which the JIT can vectorise. A group splits when a
+ * conditional branch goes different ways in different lanes, and groups that reach
+ * the same PC are merged again: the group with the lowest PC runs first, until it
+ * branches or reaches the PC of another group. So that a lane that never halts
+ * does not keep the others from running, a group that has run QUANTUM
+ * instructions in one go waits until every other group has had as many turns.
+ * With -s a lane is also stopped, with an error, once it has run that many
+ * instructions without halting.
+ *
+ * Every lane gets exactly what Simpletron gives for the same input: the same
+ * output, the same error and the same count of executed instructions.
+ *
+ * Usage: java Batch <code> <inputs> [-x] [-s <steps>] [-check]
+ * where <code> is a program for the Simpletron (its data after END is not used) and
+ * <inputs> has one line of input values per lane. -check also runs every lane on
+ * its own (for at most the same number of steps), compares the results and reports
+ * both times.
+ */
+public class Batch {
+
+    private static final int READ=10, WRITE=11, LOAD=20, STORE=21, ADD=30, SUB=31, DIV=32,
+        MUL=33, JUMP=40, JUMPL=41, JUMPZ=42, HALT=43, LOADI=22, ADDI=34, SUBI=35, DIVI=36,
+        MULI=37, JLT=50, JLE=51, JGT=52, JGE=53, JEQ=54, JNE=55;
+
+    private static final int QUANTUM = 1 << 16; //instructions a group runs before it gives up its turn
+    static final String LIMIT = "Step limit reached"; //the error of a lane stopped by the step limit
+
+    /* lanes at the same PC */
+    private static class Group {
+        int pc;
+        int lanes[];
+        int size;
+        int turns; //times it has used up its quantum
+        Group(int pc, int lanes[], int size){
+            this.pc = pc;
+            this.lanes = lanes;
+            this.size = size;
+        }
+    }
+
+    boolean ext; //accept the extended operations
+    long limit; //instructions a lane may run without halting, or 0 for no limit
+    private int n; //number of lanes
+    private int image[];
+    private int memory[][] = new int[1000][];
+    private boolean shared[] = new boolean[1000]; //the address holds the same word in every lane
+    private int accum[];
+    private int input[][];
+    private int next[]; //index of the next input value, per lane
+    private int target[]; //PC after a branch, per lane
+    private List<List<Integer>> output;
+    private String error[];
+    private long steps[];
+    private ArrayList<Group> groups;
+
+    /*
+     * image is the loaded program, and input[i] the values READ takes in lane i
+     */
+    public Batch(int image[], int input[][]){
+        this.image = image;
+        this.input = input;
+        n = input.length;
+    }
+
+    public List<Integer> output(int lane){
+        return output.get(lane);
+    }
+
+    /* the error that stopped a lane, or null if it halted */
+    public String error(int lane){
+        return error[lane];
+    }
+
+    public long steps(int lane){
+        return steps[lane];
+    }
+
+    /*
+     * Runs every lane to HALT or to an error
+     */
+    public void run(){
+        accum = new int[n];
+        next = new int[n];
+        target = new int[n];
+        error = new String[n];
+        steps = new long[n];
+        output = new ArrayList<List<Integer>>();
+        int all[] = new int[n];
+        for(int l = 0; l < n; ++l){
+            output.add(new ArrayList<Integer>());
+            all[l] = l;
+        }
+        for(int a = 0; a < memory.length; ++a){
+            memory[a] = new int[n];
+            Arrays.fill(memory[a], a < image.length ? image[a] : 0);
+            shared[a] = true;
+        }
+        groups = new ArrayList<Group>();
+        if(n > 0) groups.add(new Group(0, all, n));
+        while(!groups.isEmpty()){
+            Group g = groups.get(0);
+            for(Group h : groups) if(h.turns < g.turns || h.turns == g.turns && h.pc < g.pc) g = h;
+            int barrier = Integer.MAX_VALUE;
+            for(int i = groups.size() - 1; i >= 0; --i){
+                Group h = groups.get(i);
+                if(h == g) continue;
+                if(h.pc == g.pc) merge(g, groups.remove(i));
+                else if(h.pc > g.pc) barrier = Math.min(barrier, h.pc);
+            }
+            execute(g, barrier);
+            if(g.size == 0) groups.remove(g);
+        }
+    }
+
+    private void merge(Group g, Group h){
+        int lanes[] = Arrays.copyOf(g.lanes, g.size + h.size);
+        System.arraycopy(h.lanes, 0, lanes, g.size, h.size);
+        g.size += h.size;
+        Arrays.sort(lanes);
+        g.lanes = lanes;
+    }
+
+    /*
+     * Runs a group until it halts, branches, reaches the barrier PC or uses up
+     * its quantum
+     */
+    private void execute(Group g, int barrier){
+        long budget = QUANTUM;
+        if(limit > 0) budget = Math.min(budget, limit - stopAtLimit(g));
+        while(g.size > 0){
+            if(budget-- == 0){
+                g.turns++;
+                return;
+            }
+            int pc = g.pc;
+            if(pc >= 1000){
+                faultAll(g, "Execution went off top of memory");
+                return;
+            }
+            if(!shared[pc] && !uniform(g)){
+                splitByWord(g);
+                return;
+            }
+            int word = memory[pc][g.lanes[0]];
+            int op = word / 1000, a = word < 0 ? (-word) % 1000 : word % 1000;
+            int row[] = memory[a];
+            switch(op){
+                case READ: read(g, a); break;
+                case WRITE: for(int k = 0; k < g.size; ++k) output.get(g.lanes[k]).add(row[g.lanes[k]]); break;
+                case LOAD: load(g, row); break;
+                case STORE: store(g, a); break;
+                case ADD: case SUB: case MUL: arith(g, op, row, 0); break;
+                case DIV: divide(g, row, 0); break;
+                case JUMP:
+                    count(g);
+                    g.pc = a;
+                    return;
+                case JUMPL: case JUMPZ:
+                    for(int k = 0; k < g.size; ++k){
+                        int l = g.lanes[k];
+                        target[l] = (op == JUMPL ? accum[l] < 0 : accum[l] == 0) ? a : pc + 1;
+                    }
+                    count(g);
+                    regroup(g);
+                    return;
+                case HALT:
+                    count(g);
+                    g.size = 0;
+                    return;
+                case LOADI: case ADDI: case SUBI: case MULI: case DIVI:
+                case JLT: case JLE: case JGT: case JGE: case JEQ: case JNE:
+                    if(!ext){
+                        faultAll(g, Simpletron.BAD_OP + op + ", PC= " + pc);
+                        return;
+                    }
+                    if(op == LOADI) fill(g, a);
+                    else if(op == DIVI) divide(g, null, a);
+                    else if(op < JLT) arith(g, op, null, a);
+                    else {
+                        branch(g, op, row);
+                        count(g);
+                        regroup(g);
+                        return;
+                    }
+                    break;
+                default:
+                    faultAll(g, Simpletron.BAD_OP + op + ", PC= " + pc);
+                    return;
+            }
+            count(g);
+            g.pc++;
+            if(g.pc == barrier) return;
+        }
+    }
+
+    /*
+     * Stops the lanes of a group that have run limit instructions
+     * @return the most instructions any remaining lane has run
+     */
+    private long stopAtLimit(Group g){
+        long most = 0;
+        int live = 0;
+        for(int k = 0; k < g.size; ++k){
+            int l = g.lanes[k];
+            if(steps[l] >= limit) error[l] = LIMIT;
+            else {
+                most = Math.max(most, steps[l]);
+                g.lanes[live++] = l;
+            }
+        }
+        g.size = live;
+        return most;
+    }
+
+    private void count(Group g){
+        if(g.size == n) for(int i = 0; i < n; ++i) steps[i]++;
+        else for(int k = 0; k < g.size; ++k) steps[g.lanes[k]]++;
+    }
+
+    private void load(Group g, int row[]){
+        if(g.size == n) System.arraycopy(row, 0, accum, 0, n);
+        else for(int k = 0; k < g.size; ++k) accum[g.lanes[k]] = row[g.lanes[k]];
+    }
+
+    private void fill(Group g, int value){
+        if(g.size == n) Arrays.fill(accum, value);
+        else for(int k = 0; k < g.size; ++k) accum[g.lanes[k]] = value;
+    }
+
+    private void store(Group g, int a){
+        shared[a] = false;
+        if(g.size == n) System.arraycopy(accum, 0, memory[a], 0, n);
+        else for(int k = 0; k < g.size; ++k) memory[a][g.lanes[k]] = accum[g.lanes[k]];
+    }
+
+    /*
+     * ADD, SUB or MUL of a memory row, or of value if row is null (ADDI, SUBI, MULI)
+     */
+    private void arith(Group g, int op, int row[], int value){
+        int acc[] = accum;
+        if(row == null) op -= ADDI - ADD;
+        if(g.size == n){
+            if(row == null){
+                switch(op){
+                    case ADD: for(int i = 0; i < n; ++i) acc[i] += value; break;
+                    case SUB: for(int i = 0; i < n; ++i) acc[i] -= value; break;
+                    default: for(int i = 0; i < n; ++i) acc[i] *= value;
+                }
+            }
+            else {
+                switch(op){
+                    case ADD: for(int i = 0; i < n; ++i) acc[i] += row[i]; break;
+                    case SUB: for(int i = 0; i < n; ++i) acc[i] -= row[i]; break;
+                    default: for(int i = 0; i < n; ++i) acc[i] *= row[i];
+                }
+            }
+            int lo = 0, hi = 0;
+            for(int i = 0; i < n; ++i){
+                lo = Math.min(lo, acc[i]);
+                hi = Math.max(hi, acc[i]);
+            }
+            if(lo >= -99999 && hi <= 99999) return;
+        }
+        else {
+            for(int k = 0; k < g.size; ++k){
+                int l = g.lanes[k], v = row == null ? value : row[l];
+                acc[l] = op == ADD ? acc[l] + v : op == SUB ? acc[l] - v : acc[l] * v;
+            }
+        }
+        int live = 0;
+        for(int k = 0; k < g.size; ++k){
+            int l = g.lanes[k];
+            if(acc[l] < -99999 || acc[l] > 99999) error[l] = "Accumulator overflow or underflow";
+            else g.lanes[live++] = l;
+        }
+        g.size = live;
+    }
+
+    /*
+     * DIV by a memory row, or by an immediate value if row is null
+     */
+    private void divide(Group g, int row[], int value){
+        int live = 0;
+        for(int k = 0; k < g.size; ++k){
+            int l = g.lanes[k], d = row == null ? value : row[l];
+            if(d == 0) error[l] = "Division by zero";
+            else {
+                accum[l] /= d;
+                g.lanes[live++] = l;
+            }
+        }
+        g.size = live;
+    }
+
+    private void read(Group g, int a){
+        shared[a] = false;
+        int live = 0;
+        for(int k = 0; k < g.size; ++k){
+            int l = g.lanes[k];
+            if(next[l] >= input[l].length) error[l] = "Failure to read: int expected";
+            else {
+                int v = memory[a][l] = input[l][next[l]++];
+                if(v < -99999 || v > 9999) error[l] = "(doRead()) number out of range [-99999,99999]";
+                else g.lanes[live++] = l;
+            }
+        }
+        g.size = live;
+    }
+
+    /*
+     * Compare and branch: sets the target PC of each lane
+     */
+    private void branch(Group g, int op, int row[]){
+        int pc = g.pc, live = 0;
+        for(int k = 0; k < g.size; ++k){
+            int l = g.lanes[k], diff = accum[l] - row[l];
+            if(diff < -99999 || diff > 99999){
+                error[l] = "Accumulator overflow or underflow";
+                continue;
+            }
+            if(pc >= 999){
+                error[l] = "Execution went off top of memory";
+                continue;
+            }
+            boolean taken;
+            switch(op){
+                case JLT: taken = diff < 0; break;
+                case JLE: taken = diff <= 0; break;
+                case JGT: taken = diff > 0; break;
+                case JGE: taken = diff >= 0; break;
+                case JEQ: taken = diff == 0; break;
+                default: taken = diff != 0;
+            }
+            int t = memory[pc + 1][l];
+            if(taken && (t < 0 || t >= 1000)){
+                error[l] = "Bad branch target: " + t + ", PC= " + pc;
+                continue;
+            }
+            target[l] = taken ? t : pc + 2;
+            g.lanes[live++] = l;
+        }
+        g.size = live;
+    }
+
+    private void faultAll(Group g, String message){
+        for(int k = 0; k < g.size; ++k) error[g.lanes[k]] = message;
+        g.size = 0;
+    }
+
+    private boolean uniform(Group g){
+        int row[] = memory[g.pc], word = row[g.lanes[0]];
+        for(int k = 1; k < g.size; ++k) if(row[g.lanes[k]] != word) return false;
+        return true;
+    }
+
+    /*
+     * Splits a group whose lanes go to different target PCs
+     */
+    private void regroup(Group g){
+        int first = target[g.lanes[0]];
+        boolean same = true;
+        for(int k = 1; k < g.size && same; ++k) same = target[g.lanes[k]] == first;
+        if(same){
+            g.pc = first;
+            return;
+        }
+        Map<Integer, Group> split = new LinkedHashMap<Integer, Group>();
+        for(int k = 0; k < g.size; ++k){
+            int l = g.lanes[k];
+            Group h = split.get(target[l]);
+            if(h == null){
+                split.put(target[l], h = new Group(target[l], new int[g.size], 0));
+                h.turns = g.turns;
+            }
+            h.lanes[h.size++] = l;
+        }
+        g.size = 0;
+        groups.addAll(split.values());
+    }
+
+    /*
+     * A group whose lanes hold different instructions at their PC (the program
+     * stored into its code) executes that one instruction as separate groups
+     */
+    private void splitByWord(Group g){
+        Map<Integer, Group> split = new LinkedHashMap<Integer, Group>();
+        int row[] = memory[g.pc];
+        for(int k = 0; k < g.size; ++k){
+            int l = g.lanes[k];
+            Group h = split.get(row[l]);
+            if(h == null){
+                split.put(row[l], h = new Group(g.pc, new int[g.size], 0));
+                h.turns = g.turns;
+            }
+            h.lanes[h.size++] = l;
+        }
+        g.size = 0;
+        for(Group h : split.values()){
+            execute(h, h.pc + 1);
+            if(h.size > 0) groups.add(h);
+        }
+    }
+
+    /*
+     * Reads lines of whitespace separated values; a line ends at its first
+     * value that is not an int, as it would for Simpletron's READ
+     */
+    private static int[][] readInputs(String file) throws IOException {
+        ArrayList<int[]> lanes = new ArrayList<int[]>();
+        BufferedReader rd = new BufferedReader(new FileReader(file));
+        String line;
+        while((line = rd.readLine()) != null){
+            String tokens[] = line.trim().split("\\s+");
+            int values[] = new int[tokens.length];
+            int count = 0;
+            for(String t : tokens){
+                if(t.length() == 0) continue;
+                try {
+                    values[count] = Integer.parseInt(t);
+                }
+                catch(NumberFormatException ex){
+                    break;
+                }
+                count++;
+            }
+            lanes.add(Arrays.copyOf(values, count));
+        }
+        rd.close();
+        return lanes.toArray(new int[lanes.size()][]);
+    }
+
+    private static String result(List<Integer> output, String error){
+        StringBuilder s = new StringBuilder();
+        for(int v : output) s.append(s.length() > 0 ? " " : "").append(v);
+        if(error != null) s.append(s.length() > 0 ? " " : "").append("Error: ").append(error);
+        return s.toString();
+    }
+
+    public static void main(String[] args){
+        boolean ext = false, verify = false;
+        long limit = 0;
+        try {
+            for(int i = 2; i < args.length; ++i){
+                if(args[i].equals("-x")) ext = true;
+                else if(args[i].equals("-check")) verify = true;
+                else if(args[i].equals("-s")) limit = Long.parseLong(args[++i]);
+                else throw new IllegalArgumentException();
+            }
+            if(args.length < 2 || limit < 0) throw new IllegalArgumentException();
+        }
+        catch(RuntimeException ex){
+            System.out.println("Usage: Batch <code> <inputs> [-x] [-s <steps>] [-check]");
+            System.exit(0);
+        }
+        try {
+            Simpletron loader = new Simpletron(new Scanner(new File(args[0])), null, false);
+            int image[] = new int[1000];
+            for(int a = 0; a < image.length; ++a) image[a] = loader.peek(a);
+            int inputs[][] = readInputs(args[1]);
+
+            Batch b = new Batch(image, inputs);
+            b.ext = ext;
+            b.limit = limit;
+            long t = System.nanoTime();
+            b.run();
+            long batch = System.nanoTime() - t;
+            PrintStream out = new PrintStream(new BufferedOutputStream(System.out));
+            for(int l = 0; l < inputs.length; ++l) out.println(l + ": " + result(b.output(l), b.error(l)));
+            out.flush();
+            if(!verify) return;
+
+            int mismatches = 0;
+            t = System.nanoTime();
+            for(int l = 0; l < inputs.length; ++l){
+                StringBuilder data = new StringBuilder();
+                for(int v : inputs[l]) data.append(v).append(' ');
+                Simpletron s = new Simpletron(image, new Scanner(data.toString()), null, false);
+                s.ext = ext;
+                s.written = new ArrayList<Integer>();
+                String error = null;
+                try {
+                    if(limit == 0) s.run();
+                    else {
+                        boolean running = true;
+                        while(running && s.steps < limit) running = s.step();
+                        if(running) error = LIMIT;
+                    }
+                }
+                catch(IllegalStateException ex){
+                    error = ex.getMessage();
+                }
+                if(!result(s.written, error).equals(result(b.output(l), b.error(l))) || s.steps != b.steps(l)){
+                    mismatches++;
+                    System.err.println("Lane " + l + " differs: " + result(s.written, error) + " (" + s.steps + " steps)");
+                }
+            }
+            long separate = System.nanoTime() - t;
+            System.err.println(String.format("%d lanes, %d mismatches; batch %.1f ms, separately %.1f ms",
+                inputs.length, mismatches, batch / 1e6, separate / 1e6));
+            if(mismatches > 0) System.exit(1);
+        }
+        catch(IOException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        catch(IllegalStateException ex){
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(2);
+        }
+    }
+}
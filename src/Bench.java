@@ -0,0 +1,258 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Performance regression report over the sample corpus.
+ *
+ * Compiles every program in zip/ and a fixed set of generated workloads, for the
+ * plain and for the extended (-x) Simpletron, runs each one and records, per
+ * program: code and data size in words, executed instructions in total and per
+ * operation, and the best compile and run times in microseconds. The generated
+ * workloads are also checked against their expected output.
+ *
+ * The results are compared with a baseline file of "program metric value" lines.
+ * A size or step count that grows by more than -t percent is a regression and the
+ * exit status is 1. Times depend on the machine and its load, so a time that grows
+ * by more than SLOWER percent and by more than NOISE microseconds is only marked
+ * slower; with -tt, a time that grows by more than -tt percent (and NOISE) is a
+ * regression as well. With -w the baseline is rewritten instead.
+ *
+ * Run from the top of the repository: java Bench [-w] [-b <baseline>] [-t pct] [-tt pct] [-r runs]
+ */
+public class Bench {
+
+    private static final long NOISE = 1000; //microseconds of timing jitter tolerated
+    private static final double SLOWER = 100; //percent a time grows by to be marked slower, without -tt
+
+    /* the generated workloads: name, then Generate settings in its command line order
+     * seed, vars, labels, depth, nest, iters, stmts, data, width, comments */
+    private static final String WORKLOADS[][] = {
+        {"gen-loops", "1", "4", "2", "2", "2", "5", "3", "4", "1", "10"},
+        {"gen-deep", "2", "3", "0", "4", "1", "20", "2", "0", "1", "0"},
+        {"gen-branchy", "3", "4", "12", "1", "1", "30", "2", "0", "1", "0"},
+        {"gen-nested", "4", "2", "0", "1", "4", "6", "1", "0", "1", "0"},
+        {"gen-data", "5", "2", "0", "1", "1", "10", "1", "500", "1", "0"},
+        {"gen-wide", "6", "3", "1", "1", "1", "10", "1", "0", "6", "50"},
+    };
+
+    /* compiled only: too large for Simpletron memory */
+    private static final String LARGE[] = {"gen-large", "7", "20", "40", "3", "3", "2", "12", "0", "8", "40"};
+
+    private int runs = 10;
+    private File dir;
+    private Map<String, Long> results = new TreeMap<String, Long>();
+    private List<String> failures = new ArrayList<String>();
+    private PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+
+    /*
+     * Measures one program. expected is its output, one value per line, or null if
+     * it is not to be checked; run is false for programs that are only compiled.
+     */
+    private void measure(String name, String source, String expected, boolean run) throws IOException {
+        measure(name, source, expected, run, false);
+        measure(name + "-x", source, expected, run, true);
+    }
+
+    private void measure(String name, String source, String expected, boolean run, boolean ext) throws IOException {
+        File src = new File(dir, name + ".txt");
+        File listing = new File(dir, name + ".out");
+        File code = new File(dir, name + ".code");
+        write(src, source);
+        Parse p = new Parse(quiet);
+        p.setExtended(ext);
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < runs; ++i){
+            long t = System.nanoTime();
+            p.parse(src.getPath(), listing.getPath(), code.getPath());
+            best = Math.min(best, System.nanoTime() - t);
+        }
+        put(name, "compile.us", best / 1000);
+        put(name, "code", p.codeSize());
+        put(name, "data", p.dataSize());
+        if(!run) return;
+
+        best = Long.MAX_VALUE;
+        Simpletron s = null;
+        for(int i = 0; i < runs; ++i){
+            s = new Simpletron(new Scanner(code), null, false);
+            s.ext = ext;
+            long t = System.nanoTime();
+            try {
+                s.run();
+            }
+            catch(IllegalStateException ex){
+                failures.add(name + ": " + ex.getMessage());
+                return;
+            }
+            best = Math.min(best, System.nanoTime() - t);
+        }
+        put(name, "run.us", best / 1000);
+        put(name, "steps", s.steps);
+        for(int j = 0; j < Simpletron.CODES.length; ++j)
+            put(name, "op." + Simpletron.NAMES[j], s.counts[Simpletron.CODES[j]]);
+
+        if(expected != null){
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(bytes);
+            s = new Simpletron(new Scanner(code), out, false);
+            s.ext = ext;
+            s.run();
+            out.flush();
+            StringBuilder got = new StringBuilder();
+            for(String line : bytes.toString().split("\n"))
+                if(line.contains("====>")) got.append(line.substring(line.indexOf('>') + 1).trim()).append('\n');
+            if(!got.toString().equals(expected)) failures.add(name + ": output differs from the reference evaluator");
+        }
+    }
+
+    private static Generate generator(String w[]){
+        Generate g = new Generate();
+        g.seed = Long.parseLong(w[1]);
+        g.vars = Integer.parseInt(w[2]);
+        g.labels = Integer.parseInt(w[3]);
+        g.depth = Integer.parseInt(w[4]);
+        g.nest = Integer.parseInt(w[5]);
+        g.iters = Integer.parseInt(w[6]);
+        g.stmts = Integer.parseInt(w[7]);
+        g.data = Integer.parseInt(w[8]);
+        g.width = Integer.parseInt(w[9]);
+        g.comments = Integer.parseInt(w[10]);
+        return g;
+    }
+
+    /*
+     * Measures the whole corpus twice, keeping the second pass so that timings are
+     * taken with Lex, Parse and Simpletron already compiled by the JIT
+     */
+    private void measureAll() throws IOException {
+        dir = Files.createTempDirectory("bench").toFile();
+        try {
+            measureCorpus();
+            results.clear();
+            failures.clear();
+            measureCorpus();
+        }
+        finally {
+            for(File f : dir.listFiles()) f.delete();
+            dir.delete();
+        }
+    }
+
+    private void measureCorpus() throws IOException {
+        for(int i = 1; i <= 6; ++i) measure("s" + i, Eval.read("zip/s" + i + ".txt"), null, true);
+        for(String w[] : WORKLOADS){
+            Generate g = generator(w);
+            measure(w[0], g.program(), g.expected(), true);
+        }
+        measure(LARGE[0], generator(LARGE).program(), null, false);
+    }
+
+    private void put(String name, String metric, long value){
+        results.put(name + " " + metric, value);
+    }
+
+    private static boolean timing(String key){
+        return key.endsWith(".us");
+    }
+
+    /*
+     * Prints the comparison with the baseline; times are regressions only if
+     * timePct is not negative
+     * @return the number of regressions
+     */
+    private int compare(Map<String, Long> base, double sizePct, double timePct){
+        int regressions = 0;
+        System.out.println(String.format("%-28s %12s %12s %8s", "program metric", "baseline", "current", "change"));
+        Set<String> keys = new TreeSet<String>(base.keySet());
+        keys.addAll(results.keySet());
+        for(String key : keys){
+            Long was = base.get(key), now = results.get(key);
+            boolean gated = !timing(key) || timePct >= 0;
+            String mark = "";
+            if(was == null) mark = "new";
+            else if(now == null){
+                mark = "MISSING";
+                if(gated) regressions++;
+            }
+            else {
+                double limit = was * (1 + (!timing(key) ? sizePct : gated ? timePct : SLOWER) / 100);
+                if(now > limit && (!timing(key) || now - was > NOISE)){
+                    mark = gated ? "REGRESSION" : "slower";
+                    if(gated) regressions++;
+                }
+            }
+            if(was != null && now != null && was.equals(now) && !timing(key)) continue; //unchanged counts are not listed
+            String change = was == null || now == null || was == 0 ? "" : String.format("%+.1f%%", 100.0 * (now - was) / was);
+            System.out.println(String.format("%-28s %12s %12s %8s %s", key, was == null ? "-" : was,
+                now == null ? "-" : now, change, mark));
+        }
+        return regressions;
+    }
+
+    private static Map<String, Long> readBaseline(String file) throws IOException {
+        Map<String, Long> base = new TreeMap<String, Long>();
+        BufferedReader rd = new BufferedReader(new FileReader(file));
+        String line;
+        while((line = rd.readLine()) != null){
+            line = line.trim();
+            if(line.length() == 0 || line.startsWith("#")) continue;
+            String f[] = line.split("\\s+");
+            base.put(f[0] + " " + f[1], Long.parseLong(f[2]));
+        }
+        rd.close();
+        return base;
+    }
+
+    private void writeBaseline(String file) throws IOException {
+        StringBuilder text = new StringBuilder("# program metric value (written by java Bench -w)\n");
+        for(Map.Entry<String, Long> e : results.entrySet())
+            text.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        write(new File(file), text.toString());
+    }
+
+    private static void write(File file, String text) throws IOException {
+        BufferedWriter wr = new BufferedWriter(new FileWriter(file));
+        wr.write(text);
+        wr.close();
+    }
+
+    public static void main(String[] args){
+        Bench b = new Bench();
+        String baseline = "baseline.txt";
+        boolean rewrite = false;
+        double sizePct = 0, timePct = -1;
+        try {
+            for(int i = 0; i < args.length; ++i){
+                if(args[i].equals("-w")) rewrite = true;
+                else if(args[i].equals("-b")) baseline = args[++i];
+                else if(args[i].equals("-t")) sizePct = Double.parseDouble(args[++i]);
+                else if(args[i].equals("-tt")) timePct = Double.parseDouble(args[++i]);
+                else if(args[i].equals("-r")) b.runs = Math.max(1, Integer.parseInt(args[++i]));
+                else throw new IllegalArgumentException();
+            }
+        }
+        catch(RuntimeException ex){
+            System.out.println("Usage: Bench [-w] [-b <baseline>] [-t pct] [-tt pct] [-r runs]");
+            System.exit(0);
+        }
+        try {
+            b.measureAll();
+            for(String f : b.failures) System.out.println("FAILED " + f);
+            if(rewrite){
+                b.writeBaseline(baseline);
+                System.out.println("Baseline written to " + baseline);
+            }
+            else {
+                int regressions = b.compare(readBaseline(baseline), sizePct, timePct);
+                System.out.println(regressions + " regression(s)");
+                if(regressions > 0) System.exit(1);
+            }
+            if(!b.failures.isEmpty()) System.exit(1);
+        }
+        catch(IOException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
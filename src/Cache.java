@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Results of Simpletron runs, kept so that a run that has been made before is not
+ * made again.
+ *
+ * A run depends only on the loaded memory, on the input values READ can take and
+ * on whether the extended operations are enabled, so these are hashed (SHA-256)
+ * into its key. The input is read ahead for this, up to the first value that is
+ * not an int, and the run then reads from the values read. Only input in a regular
+ * file of up to INPUT bytes (the program file, or a separate one) is read ahead:
+ * a run that reads standard input or a pipe may have to print before its input
+ * ends, and a large input would be copied in full even if little of it is read,
+ * so such runs are not cached (see takes()). A result is what the
+ * run printed, the error that stopped it (or none if it halted) and its counts of
+ * executed instructions.
+ *
+ * Results are kept in memory, least recently used first out once they take more
+ * than the given number of bytes, and also in a directory, one file per key, if
+ * one is given. A run with verify set is always made, and its result checked
+ * against, and kept in place of, any kept for it.
+ */
+class Cache {
+
+    static final long MEMORY = 64L << 20; //bytes of results kept in memory by default
+    static final long INPUT = 1L << 20; //bytes of the largest input file whose runs are cached
+
+    /* the outcome of a run */
+    static class Result {
+        byte output[]; //what the run printed
+        String error; //the error that stopped the run, or null if it halted
+        long steps;
+        long counts[];
+        boolean differed; //returned by a verified run whose kept result was not the same
+
+        long size(){
+            return output.length + counts.length * 8 + 100;
+        }
+
+        /* this result, marked as differing from the one kept */
+        Result marked(){
+            Result m = new Result();
+            m.output = output;
+            m.error = error;
+            m.steps = steps;
+            m.counts = counts;
+            m.differed = true;
+            return m;
+        }
+
+        boolean same(Result r){
+            return Arrays.equals(output, r.output) && Objects.equals(error, r.error) && steps == r.steps
+                && Arrays.equals(counts, r.counts);
+        }
+    }
+
+    private long capacity;
+    private File dir;
+    private LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true);
+    private long bytes;
+    private long hits, diskHits, misses, verified, differed, evicted, passed;
+
+    /*
+     * capacity is the number of bytes of results kept in memory, and dir the
+     * directory to keep them in as well, or null
+     */
+    Cache(long capacity, File dir){
+        this.capacity = capacity;
+        this.dir = dir;
+        if(dir != null) dir.mkdirs();
+    }
+
+    /*
+     * Whether runs that read the file input (null for standard input) can be
+     * cached; those that cannot are counted as passed by
+     */
+    boolean takes(File input){
+        if(input != null && input.isFile() && input.length() <= INPUT) return true;
+        synchronized(this){
+            passed++;
+        }
+        return false;
+    }
+
+    /*
+     * Runs s, which is loaded and has not run and whose input the cache takes,
+     * or takes its result from the cache.
+     * Either way the steps and counts of s are those of the run; what it printed is
+     * in the result, not in s.out.
+     */
+    Result run(Simpletron s, boolean verify){
+        int values[] = new int[1024], n = 0;
+        while(s.in.hasNextInt()){
+            if(n == values.length) values = Arrays.copyOf(values, 2 * n);
+            values[n++] = s.in.nextInt();
+        }
+        ByteBuffer input = ByteBuffer.allocate(4 * n);
+        input.asIntBuffer().put(values, 0, n);
+        s.in = new Input(input, true);
+        String key = key(s, input);
+
+        Result kept = get(key, !verify);
+        if(kept != null && !verify){
+            s.steps = kept.steps;
+            System.arraycopy(kept.counts, 0, s.counts, 0, s.counts.length);
+            return kept;
+        }
+        Result r = execute(s);
+        boolean differs = kept != null && !kept.same(r);
+        if(verify){
+            synchronized(this){
+                verified++;
+                if(differs) differed++;
+            }
+        }
+        if(kept == null || differs) put(key, r);
+        return differs ? r.marked() : r;
+    }
+
+    private static Result execute(Simpletron s){
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        PrintStream out = s.out;
+        s.out = new PrintStream(printed);
+        Result r = new Result();
+        try {
+            s.run();
+        }
+        catch(IllegalStateException ex){
+            r.error = ex.getMessage();
+        }
+        finally {
+            s.out.flush();
+            s.out = out;
+        }
+        r.output = printed.toByteArray();
+        r.steps = s.steps;
+        r.counts = s.counts.clone();
+        return r;
+    }
+
+    private static String key(Simpletron s, ByteBuffer input){
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            ByteBuffer image = ByteBuffer.allocate(4 * 1000 + 1);
+            for(int a = 0; a < 1000; ++a) image.putInt(s.peek(a));
+            image.put((byte)(s.ext ? 1 : 0));
+            sha.update(image.array());
+            sha.update(input.array());
+            StringBuilder hex = new StringBuilder();
+            for(byte b : sha.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        }
+        catch(NoSuchAlgorithmException ex){ //every Java platform has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /* the result kept for key, from memory or from dir, or null; counted in the statistics if counted */
+    private Result get(String key, boolean counted){
+        synchronized(this){
+            Result r = results.get(key);
+            if(r != null){
+                if(counted) hits++;
+                return r;
+            }
+        }
+        Result r = read(key);
+        synchronized(this){
+            if(r != null) keep(key, r);
+            if(!counted) return r;
+            if(r == null) misses++;
+            else diskHits++;
+        }
+        return r;
+    }
+
+    private void put(String key, Result r){
+        synchronized(this){
+            keep(key, r);
+        }
+        write(key, r);
+    }
+
+    private void keep(String key, Result r){
+        if(r.size() > capacity) return;
+        Result old = results.put(key, r);
+        if(old != null) bytes -= old.size();
+        bytes += r.size();
+        for(Iterator<Result> i = results.values().iterator(); bytes > capacity; evicted++){
+            bytes -= i.next().size();
+            i.remove();
+        }
+    }
+
+    private Result read(String key){
+        if(dir == null) return null;
+        File f = new File(dir, key);
+        if(!f.exists()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                Result r = new Result();
+                if(in.readBoolean()) r.error = in.readUTF();
+                r.steps = in.readLong();
+                r.counts = new long[in.readInt()];
+                for(int i = 0; i < r.counts.length; ++i) r.counts[i] = in.readLong();
+                r.output = new byte[in.readInt()];
+                in.readFully(r.output);
+                return r;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch(IOException | RuntimeException ex){ //unreadable, so run again
+            return null;
+        }
+    }
+
+    /* writes a result to dir, through a temporary file so that no reader sees it half written */
+    private void write(String key, Result r){
+        if(dir == null) return;
+        try {
+            File tmp = File.createTempFile(key, ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeBoolean(r.error != null);
+            if(r.error != null) out.writeUTF(r.error);
+            out.writeLong(r.steps);
+            out.writeInt(r.counts.length);
+            for(long c : r.counts) out.writeLong(c);
+            out.writeInt(r.output.length);
+            out.write(r.output);
+            out.close();
+            Files.move(tmp.toPath(), new File(dir, key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException ex){ //not kept on disk
+        }
+    }
+
+    synchronized String stats(){
+        return String.format("cache %d hits (%d from disk), %d misses, %d verified (%d differed), %d passed by, "
+            + "%d results in %.1f of %.1f MB, %d evicted\n", hits + diskHits, diskHits, misses, verified, differed,
+            passed, results.size(), bytes / 1048576.0, capacity / 1048576.0, evicted);
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/**
+ * Sends one job to a Daemon and copies its output and errors to System.out and
+ * System.err, then exits with the status of the job. Standard input is sent
+ * along if the job may read it (an argument "-").
+ *
+ * A job is sent as the client's directory, the number of arguments and the
+ * arguments (all as DataOutputStream writes them), followed by standard input.
+ * The reply is a sequence of frames, each a channel byte (Daemon.OUT or
+ * Daemon.ERR), a length and that many bytes, and ends with a Daemon.EXIT byte and
+ * the exit status.
+ *
+ * Usage: java Client <socket> parse <source> <output> <code> [options]
+ *        java Client <socket> run <code> [options]
+ *        java Client <socket> stats|stop
+ */
+public class Client {
+
+    public static void main(String[] args){
+        if(args.length < 2){
+            System.out.println("Usage: Client <socket> parse <source> <output> <code> [options] | run <code> [options] | stats | stop");
+            System.exit(0);
+        }
+        try {
+            final SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(args[0]));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream request = new DataOutputStream(bytes);
+            request.writeUTF(System.getProperty("user.dir"));
+            request.writeInt(args.length - 1);
+            boolean stdin = false;
+            for(int i = 1; i < args.length; ++i){
+                request.writeUTF(args[i]);
+                stdin |= args[i].equals("-");
+            }
+            write(ch, bytes.toByteArray(), bytes.size());
+            if(stdin){
+                Thread copy = new Thread() {
+                    public void run(){
+                        try {
+                            byte b[] = new byte[1 << 16];
+                            for(int n; (n = System.in.read(b)) > 0; ) write(ch, b, n);
+                            ch.shutdownOutput();
+                        }
+                        catch(IOException ex){} //the job is over
+                    }
+                };
+                copy.setDaemon(true);
+                copy.start();
+            }
+            else ch.shutdownOutput();
+
+            DataInputStream reply = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+            OutputStream err = new BufferedOutputStream(new FileOutputStream(FileDescriptor.err));
+            byte b[] = new byte[1 << 16];
+            int last = Daemon.OUT;
+            while(true){
+                int channel = reply.readByte();
+                if(channel != last) (last == Daemon.OUT ? out : err).flush(); //keep their order on a terminal
+                if(channel == Daemon.EXIT){
+                    int status = reply.readInt();
+                    out.flush();
+                    err.flush();
+                    System.exit(status);
+                }
+                OutputStream to = channel == Daemon.ERR ? err : out;
+                for(int n = reply.readInt(), k; n > 0; n -= k){
+                    k = reply.read(b, 0, Math.min(n, b.length));
+                    if(k < 0) throw new EOFException("Connection closed");
+                    to.write(b, 0, k);
+                }
+                if(reply.available() == 0) to.flush(); //the job may be waiting for input
+                last = channel;
+            }
+        }
+        catch(IOException ex){
+            System.err.println("Daemon on " + args[0] + ": " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void write(SocketChannel ch, byte b[], int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(b, 0, n);
+        while(buf.hasRemaining()) ch.write(buf);
+    }
+}
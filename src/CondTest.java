@@ -0,0 +1,90 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Differential test of condition code generation.
+ *
+ * Every comparison operator over pairs of values including the overflow
+ * boundaries, with the operands in variables and in expressions, for plain and
+ * extended code, is compiled, run on the Simpletron and checked against the
+ * reference evaluator (Eval) in its outputs and in its errors. Each case that
+ * differs is printed, and the exit status is 1 if there is any.
+ *
+ * Usage: java CondTest
+ */
+public class CondTest {
+
+    private static final String LOGIC[] = {"<", "<=", ">", ">=", "==", "!="};
+    private static final String VALUES[] = {"0 - 99999", "0 - 50000", "0 - 1", "0", "1", "49999", "50000", "99999"};
+    private static final String FORMS[][] = {{"a", "b"}, {"(a + 0)", "b*1"}, {"a", "b - 0"}, {"a*1", "b"}};
+
+    private int cases, failures;
+
+    private void testAll() throws IOException {
+        File source = File.createTempFile("cond", ".txt");
+        File output = File.createTempFile("cond", ".out");
+        File code = File.createTempFile("cond", ".code");
+        try {
+            for(String op : LOGIC) for(String a : VALUES) for(String b : VALUES) for(String f[] : FORMS)
+                test(op, a, b, f, source, output, code);
+        }
+        finally {
+            source.delete();
+            output.delete();
+            code.delete();
+        }
+    }
+
+    /*
+     * Checks one condition, compiled as plain and as extended code
+     */
+    private void test(String op, String a, String b, String f[], File source, File output, File code) throws IOException {
+        String program = "a\nb\nbegin\n a = " + a + "\n b = " + b + "\n if " + f[0] + " " + op + " "
+            + f[1] + " goto yes\n write 0\n halt\nyes: write 1\n halt\nend\n";
+        Eval e = new Eval(program);
+        String status = e.run(1000);
+        String expected = e.output() + " " + status;
+        BufferedWriter w = new BufferedWriter(new FileWriter(source));
+        w.write(program);
+        w.close();
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        for(int x = 0; x < 2; ++x){
+            Parse p = new Parse(quiet);
+            p.setExtended(x == 1);
+            p.parse(source.getPath(), output.getPath(), code.getPath());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Simpletron sim = new Simpletron(new Scanner(code), new PrintStream(bytes), false);
+            sim.ext = x == 1;
+            String error = null;
+            try {
+                sim.run();
+            }
+            catch(IllegalStateException ex){
+                error = ex.getMessage();
+            }
+            ArrayList<Integer> written = new ArrayList<Integer>();
+            for(String line : bytes.toString().split("\n"))
+                if(line.contains("====>")) written.add(Integer.parseInt(line.substring(line.indexOf('>') + 1).trim()));
+            String got = written + " " + error;
+            cases++;
+            if(!got.equals(expected)){
+                failures++;
+                System.out.println("FAILED " + (x == 1 ? "-x " : "") + "a = " + a + ", b = " + b + ", if " + f[0] + " "
+                    + op + " " + f[1] + ": expected " + expected + ", got " + got);
+            }
+        }
+    }
+
+    public static void main(String[] args){
+        CondTest t = new CondTest();
+        try {
+            t.testAll();
+        }
+        catch(IOException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        System.out.println(t.cases + " cases, " + t.failures + " failures");
+        if(t.failures > 0) System.exit(1);
+    }
+}
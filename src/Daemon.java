@@ -0,0 +1,259 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A compile and run server, which keeps Parse and Simpletron loaded and compiled
+ * by the JIT instead of starting a JVM for every program.
+ *
+ * Listens on a Unix domain socket for jobs sent by Client. A job is the command
+ * line of Parse or of Simpletron, or a request to the server:
+ *     parse <source> <output> <code> [-x] [-p <steps>] [-j <threads>]
+ *     run <code> [-v] [-x] [-i <data> [-b]] [-nocache] [-verify]
+ *     stats     startup time, the latency of the first and of later jobs, and
+ *               the statistics of the cache
+ *     stop      stop once the jobs running are done
+ * Up to -t jobs run at once. Each has its own Parse or Simpletron and its own
+ * output and error streams, which go back to its client and end with the exit
+ * status the command would have had. File names are taken relative to the
+ * directory of the client, and READ input "-" is the client's standard input.
+ *
+ * Runs share a Cache of results of up to -m megabytes (none if 0), also kept in
+ * the directory given by -c, so that a run that has been made before is answered
+ * from the cache; -nocache makes a run regardless, and -verify checks the cache.
+ * Runs that read the client's standard input are not cached, and a run cannot
+ * name a cache of its own with -c.
+ *
+ * Before listening, the server compiles and runs a generated program -w times,
+ * as plain and as extended code, so that the first job does not run cold.
+ *
+ * Usage: java Daemon <socket> [-t threads] [-w rounds] [-m megabytes] [-c <dir>]
+ */
+public class Daemon {
+
+    /* the channels of the frames of a reply (see Client) */
+    static final int EXIT = 0, OUT = 1, ERR = 2;
+
+    private static final String USAGE = "Usage: parse <source> <output> <code> [options] | run <code> [options] | stats | stop";
+
+    /* output of a job, sent to its client as frames of one channel */
+    private static class Frames extends OutputStream {
+        private DataOutputStream sink;
+        private int channel;
+        Frames(DataOutputStream sink, int channel){
+            this.sink = sink;
+            this.channel = channel;
+        }
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+        public void write(byte b[], int off, int len) throws IOException {
+            if(len == 0) return;
+            sink.writeByte(channel);
+            sink.writeInt(len);
+            sink.write(b, off, len);
+        }
+        public void flush() throws IOException {
+            sink.flush();
+        }
+    }
+
+    private ServerSocketChannel server;
+    private Cache cache; //results of runs, or null
+    private int rounds = 20; //warm-up rounds
+    private long startup; //milliseconds from JVM start to listening
+    private long jobs, first, total, best = Long.MAX_VALUE; //count and nanoseconds of parse and run jobs
+
+    /*
+     * Compiles and runs a generated program, discarding the results
+     */
+    private void warmUp() throws IOException {
+        Generate g = new Generate();
+        File dir = Files.createTempDirectory("daemon").toFile();
+        String source = new File(dir, "warm.txt").getPath(), listing = new File(dir, "warm.out").getPath(),
+            code = new File(dir, "warm.code").getPath();
+        BufferedWriter w = new BufferedWriter(new FileWriter(source));
+        w.write(g.program());
+        w.close();
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        InputStream none = InputStream.nullInputStream();
+        for(int i = 0; i < rounds; ++i){
+            Parse.run(new String[]{source, listing, code}, quiet, quiet);
+            Simpletron.run(new String[]{code}, none, quiet, quiet);
+            Parse.run(new String[]{source, listing, code, "-x"}, quiet, quiet);
+            Simpletron.run(new String[]{code, "-x"}, none, quiet, quiet);
+        }
+        for(File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    /*
+     * Accepts jobs until stopped
+     */
+    private void serve(String socket, int threads) throws IOException {
+        Path path = Paths.get(socket);
+        Files.deleteIfExists(path); //left by a server that was killed
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(path));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        startup = ManagementFactory.getRuntimeMXBean().getUptime();
+        System.out.println("Listening on " + socket + " after " + startup + " ms");
+        try {
+            while(true){
+                final SocketChannel ch = server.accept();
+                pool.execute(new Runnable() {
+                    public void run(){
+                        handle(ch);
+                    }
+                });
+            }
+        }
+        catch(ClosedChannelException ex){ //stopped
+        }
+        finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException ex){}
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /*
+     * Reads a job from its client, runs it and sends back its output and status
+     */
+    private void handle(SocketChannel ch){
+        try {
+            InputStream in = Channels.newInputStream(ch);
+            DataInputStream request = new DataInputStream(in);
+            String dir = request.readUTF();
+            int n = request.readInt();
+            if(n < 0 || n > 1000) return;
+            String args[] = new String[n];
+            for(int i = 0; i < n; ++i) args[i] = request.readUTF();
+
+            long t = System.nanoTime();
+            DataOutputStream sink = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            final PrintStream out = new PrintStream(new Frames(sink, OUT)), err = new PrintStream(new Frames(sink, ERR));
+            InputStream stdin = new FilterInputStream(in) { //sends what the job has written before waiting for input
+                public int read() throws IOException {
+                    out.flush();
+                    err.flush();
+                    return super.read();
+                }
+                public int read(byte b[], int off, int len) throws IOException {
+                    out.flush();
+                    err.flush();
+                    return super.read(b, off, len);
+                }
+            };
+            int status;
+            try {
+                status = job(Paths.get(dir), args, stdin, out, err);
+            }
+            catch(RuntimeException ex){
+                err.println("Error: " + ex);
+                status = 1;
+            }
+            out.flush();
+            err.flush();
+            sink.writeByte(EXIT);
+            sink.writeInt(status);
+            sink.flush();
+            if(n > 0 && (args[0].equals("parse") || args[0].equals("run"))) record(System.nanoTime() - t);
+        }
+        catch(IOException ex){ //the client went away
+        }
+        finally {
+            try {
+                ch.close();
+            }
+            catch(IOException ex){}
+        }
+    }
+
+    /*
+     * Runs one job
+     * @return its exit status
+     */
+    private int job(Path dir, String args[], InputStream stdin, PrintStream out, PrintStream err) throws IOException {
+        String command = args.length > 0 ? args[0] : "";
+        String rest[] = Arrays.copyOfRange(args, Math.min(1, args.length), args.length);
+        if(command.equals("parse")){
+            for(int i = 0; i < rest.length && i < 3; ++i) rest[i] = dir.resolve(rest[i]).toString();
+            return Parse.run(rest, out, err);
+        }
+        if(command.equals("run")){
+            for(int i = 0; i < rest.length; ++i)
+                if(i == 0 || rest[i - 1].equals("-i") && !rest[i].equals("-"))
+                    rest[i] = dir.resolve(rest[i]).toString();
+            return Simpletron.run(rest, stdin, out, err, cache);
+        }
+        if(command.equals("stats")){
+            out.print(stats());
+            return 0;
+        }
+        if(command.equals("stop")){
+            out.println("Stopping");
+            server.close();
+            return 0;
+        }
+        err.println(USAGE);
+        return 1;
+    }
+
+    private synchronized void record(long ns){
+        if(jobs++ == 0) first = ns;
+        else {
+            total += ns;
+            best = Math.min(best, ns);
+        }
+    }
+
+    private synchronized String stats(){
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("startup %d ms (JVM start to listening, %d warm-up rounds)\n", startup, rounds));
+        s.append(String.format("jobs %d", jobs));
+        if(jobs > 0) s.append(String.format(", first %.3f ms", first / 1e6));
+        if(jobs > 1) s.append(String.format(", later mean %.3f ms, best %.3f ms", total / 1e6 / (jobs - 1), best / 1e6));
+        s.append('\n');
+        if(cache != null) s.append(cache.stats());
+        return s.toString();
+    }
+
+    public static void main(String[] args){
+        Daemon d = new Daemon();
+        int threads = Runtime.getRuntime().availableProcessors();
+        long memory = Cache.MEMORY;
+        File dir = null;
+        try {
+            for(int i = 1; i < args.length; ++i){
+                if(args[i].equals("-t")) threads = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-w")) d.rounds = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-m")) memory = Long.parseLong(args[++i]) << 20;
+                else if(args[i].equals("-c")) dir = new File(args[++i]);
+                else throw new IllegalArgumentException();
+            }
+            if(args.length < 1 || threads < 1) throw new IllegalArgumentException();
+        }
+        catch(RuntimeException ex){
+            System.out.println("Usage: Daemon <socket> [-t threads] [-w rounds] [-m megabytes] [-c <dir>]");
+            System.exit(0);
+        }
+        if(memory > 0 || dir != null) d.cache = new Cache(memory, dir);
+        try {
+            d.warmUp();
+            d.serve(args[0], threads);
+        }
+        catch(IOException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
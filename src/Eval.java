@@ -0,0 +1,338 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A reference evaluator for the Easy language.
+ *
+ * Runs an Easy source program directly, without compiling it, and reproduces what
+ * the compiled program does on the Simpletron: every +, - and * is range checked
+ * against [-99999, 99999] after it is computed in Java int arithmetic, division
+ * truncates and traps on zero, every comparison subtracts its operands (and so can
+ * overflow), and READ accepts the same values doRead() does.
+ * The data read by the program is taken from the lines following "end".
+ *
+ * Usage: java Eval <source>
+ */
+public class Eval {
+
+    /* expression and statement kinds */
+    private static final int NUM=0, VAR=1, ADD=2, SUB=3, MUL=4, DIV=5;
+    private static final int ASSIGN=0, IF=1, GOTO=2, HALT=3, READ=4, WRITE=5, EMPTY=6;
+
+    /* expression tree node */
+    private static class Node {
+        int kind, value; //value is the number, or the variable slot
+        Node left, right;
+        Node(int kind, int value, Node left, Node right){
+            this.kind = kind;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /* a single LINE of the program */
+    private static class Stmt {
+        int kind, var, logic, target, line;
+        Node left, right;
+        String label;
+    }
+
+    private Lex lexer;
+    private int token;
+    private Map<String, Integer> vars;
+    private Map<String, Integer> labels;
+    private ArrayList<Stmt> program;
+    private ArrayList<String> data;
+
+    private int values[];
+    private int input;
+    private ArrayList<Integer> output;
+    private String error;
+    private long steps;
+
+    /*
+     * Reads and checks the program in source. Throws IllegalArgumentException on a
+     * syntax error.
+     */
+    public Eval(String source){
+        lexer = new Lex();
+        vars = new HashMap<String, Integer>();
+        labels = new HashMap<String, Integer>();
+        program = new ArrayList<Stmt>();
+        data = new ArrayList<String>();
+        String lines[] = source.split("\n", -1);
+        int n = 0;
+        //declarations
+        for(; n < lines.length; ++n){
+            set(lines[n]);
+            if(token == Lex.BEGIN) break;
+            if(token == Lex.IDENT){
+                require(!vars.containsKey(lexer.str()), n, "Variable " + lexer.str() + " is already declared.");
+                vars.put(lexer.str(), vars.size());
+                next();
+            }
+            require(token == Lex.EOLN, n, "Newline expected after variable declaration.");
+        }
+        require(n < lines.length, n, "Begin statement expected.");
+        //lines
+        for(++n; n < lines.length; ++n){
+            set(lines[n]);
+            if(token == Lex.END) break;
+            program.add(statement(n));
+        }
+        require(n < lines.length, n, "Invalid program termination.");
+        for(++n; n < lines.length; ++n)
+            data.addAll(Arrays.asList(lines[n].trim().split("\\s+")));
+        data.removeAll(Collections.singleton(""));
+        for(Stmt s : program){
+            if(s.kind == IF || s.kind == GOTO){
+                require(labels.containsKey(s.label), s.line, "Undeclared label after goto statement.");
+                s.target = labels.get(s.label);
+            }
+        }
+    }
+
+    /*
+     * Runs the program until halt, an error, or until limit lines have executed.
+     * @return null on halt, otherwise the error message Simpletron would report
+     */
+    public String run(long limit){
+        values = new int[vars.size()];
+        output = new ArrayList<Integer>();
+        input = 0;
+        steps = 0;
+        error = null;
+        int pc = 0;
+        while(error == null){
+            if(pc >= program.size()) return error = "Program ran off the end of its code";
+            if(steps++ >= limit) return error = "Step limit reached";
+            Stmt s = program.get(pc++);
+            switch(s.kind){
+                case ASSIGN: values[s.var] = eval(s.left); break;
+                case WRITE: int v = eval(s.left); if(error == null) output.add(v); break;
+                case READ: values[s.var] = read(); break;
+                case GOTO: pc = s.target; break;
+                case HALT: return null;
+                case IF: if(compare(s)) pc = s.target; break;
+                default: break;
+            }
+        }
+        return error;
+    }
+
+    public List<Integer> output(){
+        return output;
+    }
+
+    /* number of LINEs executed by the last run */
+    public long steps(){
+        return steps;
+    }
+
+    private boolean compare(Stmt s){
+        int a = eval(s.left);
+        int b = eval(s.right);
+        int d = range(a - b);
+        if(error != null) return false;
+        switch(s.logic){
+            case Lex.LT: return d < 0;
+            case Lex.LTE: return d <= 0;
+            case Lex.GT: return d > 0;
+            case Lex.GTE: return d >= 0;
+            case Lex.EQU: return d == 0;
+            default: return d != 0;
+        }
+    }
+
+    private int eval(Node e){
+        if(error != null) return 0;
+        switch(e.kind){
+            case NUM: return e.value;
+            case VAR: return values[e.value];
+        }
+        int a = eval(e.left);
+        int b = eval(e.right);
+        if(error != null) return 0;
+        switch(e.kind){
+            case ADD: return range(a + b);
+            case SUB: return range(a - b);
+            case MUL: return range(a * b);
+            default:
+                if(b == 0){
+                    error = "Division by zero";
+                    return 0;
+                }
+                return a / b;
+        }
+    }
+
+    private int range(int v){
+        if(error == null && (v < -99999 || v > 99999)) error = "Accumulator overflow or underflow";
+        return v;
+    }
+
+    private int read(){
+        int v;
+        try {
+            v = Integer.parseInt(data.get(input++));
+        }
+        catch(RuntimeException ex){ //no more data, or not an int
+            error = "Failure to read: int expected";
+            return 0;
+        }
+        if(v < -99999 || v > 9999) error = "(doRead()) number out of range [-99999,99999]";
+        return v;
+    }
+
+    private Stmt statement(int n){
+        Stmt s = new Stmt();
+        s.line = n;
+        s.kind = EMPTY;
+        if(token == Lex.IDENT && lexer.peek() == Lex.COLON){
+            require(!labels.containsKey(lexer.str()), n, "Label " +lexer.str()+ " has already been declared");
+            labels.put(lexer.str(), program.size());
+            next();
+            next();
+        }
+        if(token == Lex.IDENT){
+            s.kind = ASSIGN;
+            s.var = var(n);
+            require(token == Lex.SETEQ, n, "Assignment operator \"=\" expected.");
+            next();
+            s.left = expression(n);
+        }
+        else if(token == Lex.IF){
+            s.kind = IF;
+            next();
+            s.left = expression(n);
+            s.logic = token;
+            require(token >= Lex.LT && token <= Lex.NEQ, n, "Invalid comparison operator.");
+            next();
+            s.right = expression(n);
+            require(token == Lex.GOTO, n, "Goto statement expected.");
+            next();
+            s.label = label(n);
+        }
+        else if(token == Lex.GOTO){
+            s.kind = GOTO;
+            next();
+            s.label = label(n);
+        }
+        else if(token == Lex.READ){
+            s.kind = READ;
+            next();
+            s.var = var(n);
+        }
+        else if(token == Lex.WRITE){
+            s.kind = WRITE;
+            next();
+            s.left = expression(n);
+        }
+        else if(token == Lex.HALT){
+            s.kind = HALT;
+            next();
+        }
+        require(token == Lex.EOLN, n, "Newline expected after statement.");
+        return s;
+    }
+
+    private Node expression(int n){
+        Node e = term(n);
+        while(token == Lex.PLUS || token == Lex.MINUS){
+            int kind = token == Lex.PLUS ? ADD : SUB;
+            next();
+            e = new Node(kind, 0, e, term(n));
+        }
+        return e;
+    }
+
+    private Node term(int n){
+        Node e = factor(n);
+        while(token == Lex.TIMES || token == Lex.DIVIDE){
+            int kind = token == Lex.TIMES ? MUL : DIV;
+            next();
+            e = new Node(kind, 0, e, factor(n));
+        }
+        return e;
+    }
+
+    private Node factor(int n){
+        if(token == Lex.NUMBER){
+            Node e = new Node(NUM, Integer.parseInt(lexer.str()), null, null);
+            next();
+            return e;
+        }
+        if(token == Lex.IDENT) return new Node(VAR, var(n), null, null);
+        require(token == Lex.LBRAK, n, "Left parentheses \"(\" expected.");
+        next();
+        Node e = expression(n);
+        require(token == Lex.RBRAK, n, "Right parentheses \")\" expected.");
+        next();
+        return e;
+    }
+
+    private int var(int n){
+        require(token == Lex.IDENT, n, "Variable expected.");
+        require(vars.containsKey(lexer.str()), n, "Undeclared variable "+lexer.str()+".");
+        int slot = vars.get(lexer.str());
+        next();
+        return slot;
+    }
+
+    private String label(int n){
+        require(token == Lex.IDENT, n, "Identifier expected after \"goto\" statement.");
+        String label = lexer.str();
+        next();
+        return label;
+    }
+
+    private void set(String line){
+        lexer.set(line);
+        next();
+    }
+
+    private void next(){
+        token = lexer.next();
+    }
+
+    private static void require(boolean b, int line, String message){
+        if(!b) throw new IllegalArgumentException("Line " + (line + 1) + ": " + message);
+    }
+
+    /*
+     * Reads a whole file into a string
+     */
+    public static String read(String file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        BufferedReader rd = new BufferedReader(new FileReader(file));
+        String line;
+        while((line = rd.readLine()) != null) text.append(line).append('\n');
+        rd.close();
+        return text.toString();
+    }
+
+    public static void main(String[] args){
+        if(args.length != 1){
+            System.out.println("Usage: Eval <source>");
+            System.exit(0);
+        }
+        try {
+            Eval e = new Eval(read(args[0]));
+            String error = e.run(Long.MAX_VALUE);
+            for(int v : e.output()) System.out.println(v);
+            if(error != null){
+                System.err.println("Error: " + error);
+                System.exit(2);
+            }
+        }
+        catch(IOException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        catch(IllegalArgumentException ex){
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
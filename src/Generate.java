@@ -0,0 +1,231 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A seeded generator of valid Easy programs (see BNFEasy.txt) for benchmarks and
+ * stress tests of Lex, Parse and Simpletron.
+ *
+ * The shape of a program is set by the public fields below. Every generated program
+ * terminates without overflow or division by zero: each expression is built under a
+ * magnitude budget, variables are reduced modulo 97 after each assignment, and loops
+ * are counted. The data read by the program follows "end", as in zip/s2.txt, and the
+ * expected output is computed with the reference evaluator (Eval).
+ *
+ * Programs much larger than the defaults do not fit in the 1000 words of Simpletron
+ * memory; they still exercise Lex and Parse.
+ *
+ * Usage: java Generate [-seed n] [-vars n] [-labels n] [-depth n] [-nest n] [-iters n]
+ *                      [-stmts n] [-data n] [-width n] [-comments pct] <source> [<expected>]
+ */
+public class Generate {
+
+    private static final int LIMIT = 99999; //largest value an expression may reach
+    private static final int BOUND = 96; //largest magnitude of a reduced variable
+
+    public long seed = 1;
+    public int vars = 4; //number of variables
+    public int labels = 2; //number of forward "if ... goto" labels, besides loop labels
+    public int depth = 2; //expression depth
+    public int nest = 2; //loop nesting
+    public int iters = 5; //iterations of each loop
+    public int stmts = 3; //assignments in each loop body
+    public int data = 4; //length of the data section
+    public int width = 1; //terms in each assignment, for long lines
+    public int comments = 10; //percentage of lines carrying a comment
+
+    private Random rnd;
+    private StringBuilder text;
+    private int skips, loops;
+    private String expected;
+
+    /*
+     * Generates a program and computes its expected output.
+     * @return the program text, with its data after "end"
+     */
+    public String program(){
+        rnd = new Random(seed);
+        text = new StringBuilder();
+        skips = 0;
+        loops = 0;
+        comment(true);
+        for(int i = 0; i < vars; ++i) line("v" + i);
+        for(int i = 0; i < nest; ++i) line("c" + i);
+        line("d");
+        line("s");
+        line("t");
+        line("begin");
+        //fold the data section into s
+        if(data > 0){
+            line(" d = 0");
+            line("rd: read t");
+            line(" s = s + t");
+            reduce("s");
+            line(" d = d + 1");
+            line(" if d < " + data + " goto rd");
+        }
+        for(int i = 0; i < vars; ++i) assign(i);
+        block(0);
+        while(skips < labels) skip();
+        for(int i = 0; i < vars; ++i) line(" write v" + i);
+        line(" write s");
+        line(" halt");
+        text.append("end\n");
+        for(int i = 0; i < data; ++i) text.append(rnd.nextInt(2 * 9999 + 1) - 9999).append('\n');
+
+        String source = text.toString();
+        Eval e = new Eval(source);
+        String error = e.run(Long.MAX_VALUE);
+        if(error != null) throw new IllegalStateException("Generated program fails: " + error);
+        StringBuilder out = new StringBuilder();
+        for(int v : e.output()) out.append(v).append('\n');
+        expected = out.toString();
+        return source;
+    }
+
+    /* the output of the last generated program, one value per line */
+    public String expected(){
+        return expected;
+    }
+
+    /*
+     * A loop body at the given nesting level
+     */
+    private void block(int level){
+        for(int i = 0; i < stmts; ++i){
+            if(skips < labels && rnd.nextInt(3) == 0) skip();
+            else assign(rnd.nextInt(Math.max(vars, 1)));
+        }
+        if(level < nest){
+            String c = "c" + level, top = "loop" + loops++;
+            line(" " + c + " = 0");
+            line(top + ":");
+            block(level + 1);
+            line(" " + c + " = " + c + " + 1");
+            line(" if " + c + " < " + iters + " goto " + top);
+        }
+        if(vars > 0) line(" write v" + rnd.nextInt(vars));
+    }
+
+    /*
+     * A forward branch around an assignment and a write
+     */
+    private void skip(){
+        String label = "skip" + skips++;
+        String logic[] = {"<", "<=", ">", ">=", "==", "!="};
+        line(" if " + expr(depth, LIMIT / 2) + " " + logic[rnd.nextInt(logic.length)] + " "
+            + expr(depth, LIMIT / 2) + " goto " + label);
+        if(vars > 0) assign(rnd.nextInt(vars));
+        line(" write " + expr(depth, LIMIT));
+        line(label + ":");
+    }
+
+    /*
+     * Assigns v<i> a fresh expression of width terms, then reduces it
+     */
+    private void assign(int i){
+        if(vars == 0) return;
+        String v = "v" + i;
+        StringBuilder e = new StringBuilder(expr(depth, LIMIT / width));
+        for(int k = 1; k < width; ++k)
+            e.append(rnd.nextBoolean() ? " + " : " - ").append(expr(depth, LIMIT / width));
+        line(" " + v + " = " + e);
+        reduce(v);
+    }
+
+    private void reduce(String v){
+        line(" " + v + " = " + v + " - " + v + "/97*97");
+    }
+
+    /*
+     * An expression of at most the given depth whose value never exceeds limit in
+     * magnitude, at any step of its evaluation
+     */
+    private String expr(int depth, int limit){
+        if(depth == 0 || limit < 4 || rnd.nextInt(4) == 0) return leaf(limit);
+        switch(rnd.nextInt(4)){
+            case 0: return sub(depth, limit / 2) + " + " + sub(depth, limit / 2);
+            case 1: return sub(depth, limit / 2) + " - " + sub(depth, limit / 2);
+            case 2:
+                int root = (int)Math.sqrt(limit);
+                return sub(depth, root) + "*" + sub(depth, root);
+            default: return sub(depth, limit) + "/" + (1 + rnd.nextInt(9));
+        }
+    }
+
+    private String sub(int depth, int limit){
+        String e = expr(depth - 1, limit);
+        return e.indexOf(' ') < 0 && e.indexOf('*') < 0 && e.indexOf('/') < 0 ? e : "(" + e + ")";
+    }
+
+    private String leaf(int limit){
+        if(vars > 0 && limit >= BOUND && rnd.nextBoolean()) return "v" + rnd.nextInt(vars);
+        return "" + rnd.nextInt(Math.min(limit, 999) + 1);
+    }
+
+    private void line(String s){
+        boolean own = rnd.nextBoolean();
+        if(own) comment(true);
+        text.append(s);
+        if(!own) comment(false);
+        text.append('\n');
+    }
+
+    /*
+     * Possibly adds a comment, trailing a line or on a line of its own
+     */
+    private void comment(boolean own){
+        if(rnd.nextInt(100) >= comments) return;
+        String words[] = {"total", "loop", "check", "(x+1)", "a*b", "note:", "==", "if", "goto"};
+        if(!own) text.append(' ');
+        text.append("//");
+        for(int i = rnd.nextInt(6); i >= 0; --i) text.append(' ').append(words[rnd.nextInt(words.length)]);
+        if(!own) return;
+        text.append('\n');
+    }
+
+    public static void main(String[] args){
+        Generate g = new Generate();
+        String files[] = new String[2];
+        int n = 0;
+        try {
+            for(int i = 0; i < args.length; ++i){
+                String a = args[i];
+                if(a.equals("-seed")) g.seed = Long.parseLong(args[++i]);
+                else if(a.equals("-vars")) g.vars = Integer.parseInt(args[++i]);
+                else if(a.equals("-labels")) g.labels = Integer.parseInt(args[++i]);
+                else if(a.equals("-depth")) g.depth = Integer.parseInt(args[++i]);
+                else if(a.equals("-nest")) g.nest = Integer.parseInt(args[++i]);
+                else if(a.equals("-iters")) g.iters = Integer.parseInt(args[++i]);
+                else if(a.equals("-stmts")) g.stmts = Integer.parseInt(args[++i]);
+                else if(a.equals("-data")) g.data = Integer.parseInt(args[++i]);
+                else if(a.equals("-width")) g.width = Integer.parseInt(args[++i]);
+                else if(a.equals("-comments")) g.comments = Integer.parseInt(args[++i]);
+                else if(n < 2 && !a.startsWith("-")) files[n++] = a;
+                else n = 3;
+            }
+        }
+        catch(RuntimeException ex){
+            n = 3;
+        }
+        if(n < 1 || n > 2 || g.width < 1 || g.iters < 1 || g.nest < 0 || g.vars < 0){
+            System.out.println("Usage: Generate [-seed n] [-vars n] [-labels n] [-depth n] [-nest n] [-iters n]");
+            System.out.println("                [-stmts n] [-data n] [-width n] [-comments pct] <source> [<expected>]");
+            System.exit(0);
+        }
+        try {
+            write(files[0], g.program());
+            if(files[1] != null) write(files[1], g.expected());
+            else System.out.print(g.expected());
+        }
+        catch(IOException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void write(String file, String text) throws IOException {
+        BufferedWriter wr = new BufferedWriter(new FileWriter(file));
+        wr.write(text);
+        wr.close();
+    }
+}
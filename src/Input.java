@@ -0,0 +1,187 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The values that Simpletron's READ takes.
+ *
+ * By default these are the data lines after END in the program file, read by the
+ * Scanner that loaded the program. They can instead come from a separate file, a
+ * named pipe or standard input, either as text or in binary. Text is parsed here
+ * instead of by Scanner, whose regular expressions make READ parser-bound on large
+ * inputs. Regular files are memory mapped; pipes and standard input are read
+ * through a buffer.
+ *
+ * Text is whitespace separated integers with an optional sign. As with Scanner,
+ * a token that is not an int (or is out of int range) stops the input: it is
+ * never consumed and hasNextInt() stays false. Binary input is a sequence of
+ * 32-bit big-endian ints, as written by DataOutputStream; a trailing partial int
+ * is not an int.
+ *
+ * close() closes a file opened by open(), but not standard input.
+ *
+ * Usage: java Input <text> <binary>
+ * converts a file of text values to binary input.
+ */
+class Input implements Closeable {
+
+    private static final int BUFFER = 1 << 16;
+
+    private Scanner sc; //the Scanner to take values from, or null
+    private ReadableByteChannel ch; //the channel to refill buf from, or null if buf holds everything
+    private boolean owned; //ch was opened here, and is closed by close()
+    private ByteBuffer buf;
+    private boolean binary;
+    private boolean ready; //value holds the next int
+    private boolean stuck; //the next token is not an int
+    private int value;
+
+    /* values following the program, read by the Scanner that loaded it */
+    Input(Scanner sc){
+        this.sc = sc;
+    }
+
+    /* values read from ch as they are needed */
+    Input(ReadableByteChannel ch, boolean binary){
+        this.ch = ch;
+        this.binary = binary;
+        buf = ByteBuffer.allocate(BUFFER);
+        buf.flip();
+    }
+
+    /* values held in buf */
+    Input(ByteBuffer buf, boolean binary){
+        this.buf = buf;
+        this.binary = binary;
+    }
+
+    /*
+     * Opens a file of input values, or stdin if name is "-". Regular files are
+     * mapped; anything else, such as a named pipe, is streamed.
+     */
+    static Input open(String name, boolean binary, InputStream stdin) throws IOException {
+        if(name.equals("-")) return new Input(Channels.newChannel(stdin), binary);
+        Path path = Paths.get(name);
+        FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+        if(!Files.isRegularFile(path) || fc.size() > Integer.MAX_VALUE){
+            Input in = new Input(fc, binary);
+            in.owned = true;
+            return in;
+        }
+        try {
+            return new Input(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), binary);
+        }
+        finally {
+            fc.close(); //the mapping stays valid
+        }
+    }
+
+    public void close(){
+        if(!owned) return;
+        try {
+            ch.close();
+        }
+        catch(IOException ex){ //nothing more to read anyway
+        }
+    }
+
+    boolean hasNextInt(){
+        if(sc != null) return sc.hasNextInt();
+        if(!ready && !stuck){
+            if(binary) scanBinary();
+            else scanText();
+        }
+        return ready;
+    }
+
+    int nextInt(){
+        if(sc != null) return sc.nextInt();
+        if(!hasNextInt()) throw new InputMismatchException();
+        ready = false;
+        return value;
+    }
+
+    private void scanBinary(){
+        if(buf.remaining() >= 4){
+            value = buf.getInt();
+            ready = true;
+            return;
+        }
+        int v = 0;
+        for(int i = 0; i < 4; ++i){
+            int b = get();
+            if(b < 0){
+                stuck = true;
+                return;
+            }
+            v = v << 8 | b;
+        }
+        value = v;
+        ready = true;
+    }
+
+    /*
+     * Parses the next token, leaving the input just after it
+     */
+    private void scanText(){
+        int c = get();
+        while(c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f' || c == 0x0b) c = get();
+        if(c < 0){
+            stuck = true;
+            return;
+        }
+        boolean negative = c == '-';
+        if(c == '-' || c == '+') c = get();
+        long v = 0;
+        int digits = 0;
+        for(; c >= '0' && c <= '9'; c = get(), ++digits)
+            if(v <= Integer.MAX_VALUE + 1L) v = v * 10 + c - '0';
+        if(negative) v = -v;
+        if(digits == 0 || c > ' ' || v < Integer.MIN_VALUE || v > Integer.MAX_VALUE){
+            stuck = true;
+            return;
+        }
+        value = (int)v;
+        ready = true;
+    }
+
+    /* the next byte, or -1 at the end of the input */
+    private int get(){
+        if(!buf.hasRemaining()){
+            if(ch == null) return -1;
+            try {
+                buf.clear();
+                int n;
+                do n = ch.read(buf); while(n == 0);
+                buf.flip();
+                if(n < 0) return -1;
+            }
+            catch(IOException ex){
+                throw new IllegalStateException("Failure to read: " + ex.getMessage());
+            }
+        }
+        return buf.get() & 0xff;
+    }
+
+    public static void main(String[] args){
+        if(args.length != 2){
+            System.out.println("Usage: Input <text> <binary>");
+            System.exit(0);
+        }
+        try {
+            Input in = open(args[0], false, System.in);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[1])));
+            int n = 0;
+            for(; in.hasNextInt(); ++n) out.writeInt(in.nextInt());
+            in.close();
+            out.close();
+            System.out.println(n + " values written to " + args[1]);
+        }
+        catch(IOException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -30,7 +30,7 @@ public class Lex {
     private char chr;
 
     public Lex() {
-        stringTokens = new HashMap<String, Integer>();        
+        stringTokens = new LinkedHashMap<String, Integer>();      
         stringTokens.put("^if$", IF);
         stringTokens.put("^halt$", HALT);
         stringTokens.put("^read$", READ);
@@ -2,16 +2,27 @@
  * @author Francis <fasante@ashesi.edu.gh>
  */
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.LineNumberReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /*
  * Performs syntatic and semantic analysis of the EASY language and then generates the associated Simpletron machine code
@@ -21,6 +32,27 @@ public class Parse {
     /*Give names to each operator */
 	public static final int READ=10, WRITE=11,LOAD=20,STORE=21,ADD=30,SUB=31,DIV=32,
 		MUL=33,JUMP=40,JUMPL=41,JUMPZ=42,HALT=43;
+    /*Extended operators, see Simpletron */
+	public static final int LOADI=22,ADDI=34,SUBI=35,DIVI=36,MULI=37,
+		JLT=50,JLE=51,JGT=52,JGE=53,JEQ=54,JNE=55;
+    /*Where an operand is: an immediate number, a variable or constant, on the stack or in the accumulator */
+    private static final int IMM=0, MEM=1, STK=2, ACC=3;
+    /*Fewest lines worth compiling as a separate chunk */
+    private static final int CHUNK = 1000;
+
+    /*Thrown once an error has been reported, to stop parsing */
+    private static class Abort extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Operand {
+        int kind; //IMM, MEM, STK or ACC
+        int value; //number, or address
+        Operand(int kind, int value){
+            this.kind = kind;
+            this.value = value;
+        }
+    }
   
     private String line; //current line of source text
     private String temp; //string of previous token
@@ -35,16 +67,42 @@ public class Parse {
     private boolean finished; //end of program reached
     private boolean secondParse; // second parsing
     private int pc, sp, jmp; //program counter, stack pointer, jump address
+    private int codeSize, dataSize; //words of instructions and of data generated
+    private PrintStream out; //status and error messages
+    private PrintStream err; //messages of failures to read or write files
+    private boolean extended; //generate the extended instruction set
+    private long partial; //step budget for partial evaluation, 0 for none
+    private ArrayList<Integer> image; //generated words
+    private ArrayList<Integer> lines; //address of the code of each statement
+    private int low; //lowest stack address used
+    private Operand acc; //operand held in the accumulator only
+    private int threads = 1; //threads to compile with, see parseParallel()
+    private boolean chunk; //compiling part of the program for parseParallel(): errors are thrown
+    private ArrayList<String> targets; //labels jumped to from a chunk
+    private int bases[]; //address of the code of each chunk
 
     public Parse(){
+        this(System.out);
+    }
+
+    public Parse(PrintStream out){
+        this(out, System.err);
+    }
+
+    public Parse(PrintStream out, PrintStream err){
+        this.out = out;
+        this.err = err;
         lexer = new Lex();
         vars = new HashMap<String, Integer>();
         labels = new HashMap<String, Integer>();
         constants = new ArrayList<String>();
+        image = new ArrayList<Integer>();
+        lines = new ArrayList<Integer>();
     }
 
     public void parse(String source, String output, String code) {
         try {
+            if(threads > 1 && parseParallel(source, output, code)) return;
             wr = new BufferedWriter(new FileWriter(output));            
             rd = new LineNumberReader(new FileReader(source));
 
@@ -64,16 +122,46 @@ public class Parse {
             asm = new BufferedWriter(new FileWriter(code));
             start(true);
         }
+        catch(Abort ex){ //reported by error()
+        }
         catch(FileNotFoundException ex){
-            System.err.println(ex.getMessage());
+            err.println(ex.getMessage());
             terminate(1);
         }
         catch (IOException ex) {
-            System.err.println(ex.getMessage());
+            err.println(ex.getMessage());
             terminate(1);
         }
     }
 
+    /* generate code for the extended Simpletron (java Simpletron -x) */
+    public void setExtended(boolean extended){
+        this.extended = extended;
+    }
+
+    /*
+     * evaluate the program at compile time, up to its first READ, or for about
+     * the given number of steps (see fold())
+     */
+    public void setPartial(long steps){
+        this.partial = steps;
+    }
+
+    /* compile large programs with the given number of threads (see parseParallel()) */
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+
+    /* words of instructions generated by the last parse */
+    public int codeSize(){
+        return codeSize;
+    }
+
+    /* words of variables and constants generated by the last parse */
+    public int dataSize(){
+        return dataSize;
+    }
+
     private void start(boolean secondParse){
         if(!secondParse){
             vars.clear();
@@ -81,6 +169,9 @@ public class Parse {
             constants.clear();
         }
         sp = 1000; //always enter an expression pointing to the top
+        low = sp;
+        image.clear();
+        lines.clear();
         pc = 0;
         jmp = 0;
         this.secondParse = secondParse;
@@ -111,23 +202,198 @@ public class Parse {
         catch (IOException ex){}
     }
 
-    private void processProgram() {        
+    /*
+     * Compiles with the lines between "begin" and "end" split into chunks that are
+     * lexed, checked and translated in parallel, each by a Parse of its own. Every
+     * statement starts with an empty stack and accumulator, and its code size does
+     * not depend on any address, so chunks are independent: the first pass
+     * collects the labels of each chunk, at addresses relative to the chunk, and
+     * its constants; these are merged in order, addresses are assigned by alloc()
+     * as usual, and in the second pass each chunk is translated from its own
+     * address. The listing and code are those of a sequential parse.
+     * @return false if the program has an error, which is then left to the
+     * sequential parse to report
+     */
+    private boolean parseParallel(String source, String output, String code) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<String> text = new ArrayList<String>();
+            BufferedReader in = new BufferedReader(new FileReader(source));
+            for(String s; (s = in.readLine()) != null; ) text.add(s);
+            in.close();
+            wr = new BufferedWriter(new FileWriter(output));
+            rd = new LineNumberReader(new FileReader(source));
+
+            wr.write(String.format("First pass...\n"));
+            if(!startChunks(text, pool, false)) return false;
+            wr.write(String.format("\n----------------------\n"));
+
+            wr.write("Addresses of variables and constants\n");
+            alloc();
+            wr.write("\n--------------\n");
+
+            wr.write(String.format("\nSecond pass...\n"));
+            rd = new LineNumberReader(new FileReader(source));
+            asm = new BufferedWriter(new FileWriter(code));
+            return startChunks(text, pool, true);
+        }
+        catch(IOException ex){
+            return false;
+        }
+        finally {
+            pool.shutdownNow(); //after an error, let no chunk run on while the maps are reused
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch(InterruptedException ex){}
+        }
+    }
+
+    /*
+     * One pass of parseParallel(), as start() for a sequential parse
+     */
+    private boolean startChunks(List<String> text, ExecutorService pool, boolean secondParse) throws IOException {
+        if(!secondParse){
+            vars.clear();
+            labels.clear();
+            constants.clear();
+        }
+        sp = 1000;
+        low = sp;
+        image.clear();
+        lines.clear();
+        pc = 0;
+        jmp = 0;
+        this.secondParse = secondParse;
+        finished = false;
+        token = Lex.EOLN;
+        nextToken();
         processDeclarations();
-        do{
-            if(check(Lex.IDENT) && lexer.peek() == Lex.COLON){
-                accept(Lex.IDENT);                
-                if(!secondParse){
-                    if(labels.containsKey(temp)) //check for label declarations
-                        error("Label " +temp+ " has already been declared");                    
-                    labels.put(temp, pc); //also record the position of the jump instruction
-                }             
-                accept(Lex.COLON);                
+        processLine(); //the rest of the begin line
+
+        int first = rd.getLineNumber(), last = first;
+        while(last < text.size() && !isEnd(text.get(last))) last++;
+        if(last == text.size()) return fail();
+        int size = Math.max(CHUNK, (last - first) / (4 * threads) + 1);
+        ArrayList<Parse> chunks = new ArrayList<Parse>();
+        ArrayList<Future<String>> listings = new ArrayList<Future<String>>();
+        for(int from = first, i = 0; from < last; from += size, ++i){
+            final Parse p = new Parse(out, err);
+            final int at = from, count = Math.min(last, from + size) - from;
+            final StringBuilder part = new StringBuilder();
+            for(String s : text.subList(from, from + count)) part.append(s).append('\n');
+            p.chunk = true;
+            p.secondParse = secondParse;
+            p.extended = extended;
+            p.vars = vars;
+            p.pc = secondParse ? bases[i] : 0;
+            if(secondParse) p.labels = labels;
+            else p.targets = new ArrayList<String>();
+            chunks.add(p);
+            listings.add(pool.submit(new Callable<String>() {
+                public String call() throws IOException {
+                    return p.compileChunk(part.toString(), at, count);
+                }
+            }));
+        }
+
+        if(!secondParse) bases = new int[chunks.size()];
+        HashSet<String> known = new HashSet<String>(constants), targets = new HashSet<String>();
+        for(int i = 0; i < chunks.size(); ++i){
+            Parse p = chunks.get(i);
+            try {
+                wr.write(listings.get(i).get());
+            }
+            catch(Exception ex){ //an error in the chunk, or an interrupt
+                return fail();
             }
-            processLine();
-            expect(Lex.EOLN, "Newline expected after statement.");
+            if(secondParse){
+                image.addAll(p.image);
+                lines.addAll(p.lines);
+                low = Math.min(low, p.low);
+            }
+            else {
+                bases[i] = pc;
+                for(Map.Entry<String, Integer> e : p.labels.entrySet())
+                    if(labels.put(e.getKey(), pc + e.getValue()) != null) return fail();
+                for(String c : p.constants) if(known.add(c)) constants.add(c);
+                targets.addAll(p.targets);
+            }
+            pc = p.pc;
+            if(!secondParse) pc += bases[i];
         }
+        if(!labels.keySet().containsAll(targets)) return fail();
+
+        for(int i = first; i < last; ++i) rd.readLine();
+        nextToken();
+        processEnd();
+        return true;
+    }
+
+    /*
+     * Translates count lines of text, the first of which is line at (from 0) of
+     * the program. Runs in a pool thread.
+     * @return the listing
+     */
+    private String compileChunk(String text, int at, int count) throws IOException {
+        StringWriter listing = new StringWriter();
+        wr = new BufferedWriter(listing);
+        rd = new LineNumberReader(new StringReader(text));
+        rd.setLineNumber(at);
+        sp = 1000;
+        low = sp;
+        finished = true; //the text may end with any statement
+        token = Lex.EOLN;
+        nextToken();
+        for(int i = 0; i < count; ++i) processStatement();
+        wr.flush();
+        return listing.toString();
+    }
+
+    /*
+     * closes the files of a parallel parse that will be repeated sequentially
+     */
+    private boolean fail(){
+        try {
+            rd.close();
+            wr.close();
+            if(asm != null) asm.close();
+        }
+        catch(IOException ex){}
+        return false;
+    }
+
+    /* whether a line is the "end" statement, as Lex reads its first token */
+    private static boolean isEnd(String line){
+        line = line.trim();
+        if(!line.startsWith("end")) return false;
+        if(line.length() == 3) return true;
+        char c = line.charAt(3);
+        return !(c >= 'a' && c <= 'z' || c >= '0' && c <= '9');
+    }
+
+    private void processProgram() {
+        processDeclarations();
+        do processStatement();
         while(!check(Lex.END));
+        processEnd();
+    }
 
+    private void processStatement(){
+        if(check(Lex.IDENT) && lexer.peek() == Lex.COLON){
+            accept(Lex.IDENT);                
+            if(!secondParse){
+                if(labels.containsKey(temp)) //check for label declarations
+                    error("Label " +temp+ " has already been declared");                    
+                labels.put(temp, pc); //also record the position of the jump instruction
+            }             
+            accept(Lex.COLON);                
+        }
+        processLine();
+        expect(Lex.EOLN, "Newline expected after statement.");
+    }
+
+    private void processEnd(){
         finished = true;
         accept(Lex.END);
         if(!check(Lex.EOLN)) error("Newline expected after \"end\" statement.");
@@ -157,76 +423,72 @@ public class Parse {
         if(!check(Lex.EOLN)) error("Newline expected after \"begin\" statement.");
     }    
 
-    private void processExpression(){
-        processTerm();
+    private Operand processExpression(){
+        Operand left = processTerm();
         while(check(Lex.PLUS) || check(Lex.MINUS)){
             int op = token;
             if(accept(Lex.PLUS) || accept(Lex.MINUS));
-            processTerm();
-
-            gen(LOAD, ++sp);
-            if(op == Lex.PLUS) gen(ADD, sp-1);
-            else gen(SUB, sp-1);
-            gen(STORE, sp);
+            Operand right = processTerm();
+            left = genArith(op == Lex.PLUS ? ADD : SUB, left, right);
         }
+        return left;
     }
 
-    private void processTerm(){
-        processFactor();
+    private Operand processTerm(){
+        Operand left = processFactor();
         while(check(Lex.TIMES) || check(Lex.DIVIDE)){
             int op = token;
             if(accept(Lex.TIMES) || accept(Lex.DIVIDE));
-            processFactor();
-
-            gen(LOAD, ++sp);
-            if(op == Lex.DIVIDE) gen(DIV, sp-1);
-            else gen(MUL, sp-1);
-            gen(STORE, sp);
+            Operand right = processFactor();
+            left = genArith(op == Lex.DIVIDE ? DIV : MUL, left, right);
         }
+        return left;
     }
 
-    private void processFactor(){
+    private Operand processFactor(){
         if(check(Lex.NUMBER)){
             accept(Lex.NUMBER);
-            //add constant if not in list
-            if(!secondParse && !constants.contains(temp)) constants.add(temp);
-            gen(LOAD, addrVal(temp));
-            gen(STORE, --sp);            
+            if(extended && temp.length() < 10 && Integer.parseInt(temp) < 1000) return new Operand(IMM, Integer.parseInt(temp));
+            return genPush(constant(temp));
         }
         else if(check(Lex.IDENT)) {            
             requireIDENT();
-            gen(LOAD, addrVal(temp));
-            gen(STORE, --sp);
+            return genPush(addrVal(temp));
         }
         else {
             expect(Lex.LBRAK, "Left parentheses \"(\" expected.");
-            processExpression();
+            Operand e = processExpression();
             expect(Lex.RBRAK, "Right parentheses \")\" expected.");
+            return e;
         }
     }    
 
     private void processLine(){        
+        acc = null;
+        if(secondParse) lines.add(pc);
         if(check(Lex.IDENT)){            
             requireIDENT();
             String x = temp;
             expect(Lex.SETEQ, "Assignment operator \"=\" expected.");
-            processExpression();
-            gen(LOAD, sp++);
+            Operand e = processExpression();
+            if(extended) genLoad(e);
+            else gen(LOAD, sp++);
             gen(STORE, addrVal(x));
         }
         else if(accept(Lex.IF)){
-            processExpression();
+            Operand left = processExpression();
 			//first check
             if(check(Lex.LT) || check(Lex.LTE) || check(Lex.GT) || check(Lex.GTE) || check(Lex.EQU) || check(Lex.NEQ)){
                 int op = token;
 				//now accept
                 if(accept(Lex.LT) || accept(Lex.LTE) || accept(Lex.GT) || accept(Lex.GTE) || accept(Lex.EQU) || accept(Lex.NEQ));
-                processExpression();
+                Operand right = processExpression();
                 expect(Lex.GOTO, "Goto statement expected.");
                 requireLABEL();
 				
                 jmp = addrGoto(temp); //jump address
-                genCond(op);
+                if(extended) genBranch(op, left, right);
+                else genCond(op);
             }
             else error("Invalid comparison operator.");
         }
@@ -239,8 +501,10 @@ public class Parse {
             gen(READ, addrVal(temp));
         }
         else if(accept(Lex.WRITE)){
-            processExpression();
-            gen(WRITE, sp++);
+            Operand e = processExpression();
+            if(extended) gen(WRITE, genMemory(e));
+            else gen(WRITE, sp);
+            release(e);
         }
         else if(accept(Lex.HALT)){
             gen(HALT, 0);
@@ -262,6 +526,7 @@ public class Parse {
      * expects a label
      */
     private void requireLABEL(){
+        if(check(Lex.IDENT) && chunk && !secondParse) targets.add(lexer.str());
         if(check(Lex.IDENT) && secondParse){
             if(!labels.containsKey(lexer.str()))
                 error("Undeclared label after goto statement.");
@@ -277,7 +542,8 @@ public class Parse {
             if(secondParse) {
                 int code = opcode * 1000 + address;
                 wr.write(String.format("\t\t[%d] %d\n", pc, code));
-                asm.write(String.format("%d\n", code));
+                image.add(code);
+                low = Math.min(low, sp);
             }
             ++pc;
         }
@@ -285,63 +551,153 @@ public class Parse {
         }
     }
 
-    //generate ==
-    private void genEQU(){
-        gen(LOAD, ++sp);
-        gen(SUB, sp-1);
-        gen(JUMPZ, jmp);
-        sp++;
+    /*
+     * generates code to make a value available as an operand.
+     * Pushes it on the stack, unless generating extended code.
+     */
+    private Operand genPush(int address){
+        if(extended) return new Operand(MEM, address);
+        gen(LOAD, address);
+        gen(STORE, --sp);
+        return new Operand(STK, sp);
     }
 
-    //generate <
-    private void genLT(){
-        gen(LOAD, ++sp);
-        gen(SUB, sp-1);
-        gen(JUMPL, jmp);
-        sp++;
+    /*
+     * generates left = left op right, leaving the result on top of the stack,
+     * or in the accumulator for extended code.
+     */
+    private Operand genArith(int opcode, Operand left, Operand right){
+        if(!extended){
+            gen(LOAD, ++sp);
+            gen(opcode, sp-1);
+            gen(STORE, sp);
+            left.value = sp;
+            return left;
+        }
+        if(right.kind == ACC){
+            if(opcode == ADD || opcode == MUL){ //commute, to use the accumulator as it is
+                Operand t = left;
+                left = right;
+                right = t;
+            }
+            else spill();
+        }
+        genLoad(left);
+        if(right.kind == IMM) gen(opcode + ADDI - ADD, right.value);
+        else gen(opcode, right.value);
+        release(right);
+        return left;
     }
 
-    //generate <=
-    private void genLTE(){
-        genEQU();
-        gen(JUMPL, jmp);
+    /*
+     * generates code to bring an operand into the accumulator (extended code)
+     */
+    private void genLoad(Operand e){
+        if(e.kind == ACC) return;
+        spill();
+        gen(e.kind == IMM ? LOADI : LOAD, e.value);
+        release(e);
+        e.kind = ACC;
+        acc = e;
     }
 
-    //generate >
-    private void genGT(){
-        gen(LOAD, sp++);
-        gen(SUB, sp++);
-        gen(JUMPL, jmp);
+    /*
+     * returns the address of an operand, storing it first if it is not in memory
+     * (extended code)
+     */
+    private int genMemory(Operand e){
+        if(e.kind == IMM){
+            e.kind = MEM;
+            e.value = constant(String.valueOf(e.value));
+        }
+        else if(e.kind == ACC) spill();
+        return e.value;
     }
 
-    //generate >=
-    private void genGTE(){
-        genEQU();
-        sp -= 2; //restore stack pointer
-        genGT();
+    /*
+     * saves the operand held in the accumulator on the stack
+     */
+    private void spill(){
+        if(acc == null) return;
+        gen(STORE, --sp);
+        acc.kind = STK;
+        acc.value = sp;
+        acc = null;
     }
 
-    //generate !=
-    private void genNEQ(){
-        genLT();
-        gen(JUMPZ, pc+2);
-        gen(JUMP, jmp);
+    /*
+     * pops an operand off the stack once it has been used
+     */
+    private void release(Operand e){
+        if(e.kind == STK) sp++;
+        else if(e.kind == ACC) acc = null;
     }
 
     /*
-     * generates code for IF condition experession
+     * generates a fused compare and branch to jmp (extended code)
+     */
+    private void genBranch(int op, Operand left, Operand right){
+        if(right.kind == ACC){ //compare the other way round
+            Operand t = left;
+            left = right;
+            right = t;
+            switch(op){
+                case Lex.LT: op = Lex.GT; break;
+                case Lex.GT: op = Lex.LT; break;
+                case Lex.LTE: op = Lex.GTE; break;
+                case Lex.GTE: op = Lex.LTE; break;
+            }
+        }
+        int address = genMemory(right);
+        genLoad(left);
+        switch(op){
+            case Lex.LT: gen(JLT, address); break;
+            case Lex.GT: gen(JGT, address); break;
+            case Lex.LTE: gen(JLE, address); break;
+            case Lex.GTE: gen(JGE, address); break;
+            case Lex.EQU: gen(JEQ, address); break;
+            case Lex.NEQ: gen(JNE, address); break;
+        }
+        gen(0, jmp);
+        release(left);
+        release(right);
+    }
+
+    /*
+     * generates code for IF condition experession.
+     * The left operand is below the right one on the stack. A single difference
+     * is computed, with the operands swapped for > and >= so that JUMPL and JUMPZ
+     * branch on it directly:
+     *   a < b   a-b, JUMPL       a > b   b-a, JUMPL       a == b  a-b, JUMPZ
+     *   a <= b  a-b, JUMPL JUMPZ  a >= b  b-a, JUMPL JUMPZ  a != b  a-b, JUMPZ over JUMP
      */
     private void genCond(int op) {
+        int left = sp + 1, right = sp;
+        sp += 2; //pop both operands
         switch(op){
-            case Lex.LT: genLT(); break;
-            case Lex.GT: genGT(); break;
-            case Lex.LTE: genLTE(); break;
-            case Lex.GTE: genGTE(); break;
-            case Lex.EQU: genEQU(); break;
-            case Lex.NEQ: genNEQ(); break;
+            case Lex.LT: genDiff(left, right); gen(JUMPL, jmp); break;
+            case Lex.GT: genDiff(right, left); gen(JUMPL, jmp); break;
+            case Lex.EQU: genDiff(left, right); gen(JUMPZ, jmp); break;
+            case Lex.LTE: genDiff(left, right); gen(JUMPL, jmp); gen(JUMPZ, jmp); break;
+            case Lex.GTE: genDiff(right, left); gen(JUMPL, jmp); gen(JUMPZ, jmp); break;
+            case Lex.NEQ: genDiff(left, right); gen(JUMPZ, pc+2); gen(JUMP, jmp); break;
         }
     }
 
+    //generate a - b into the accumulator
+    private void genDiff(int a, int b){
+        gen(LOAD, a);
+        gen(SUB, b);
+    }
+
+    /*
+     * adds a literal to the constants, and returns its address
+     */
+    private int constant(String value){
+        if(!secondParse && !constants.contains(value)) constants.add(value);
+        return addrVal(value);
+    }
+
     private int addrVal(String value){
         if(secondParse) return vars.get(value);
         return 0;
@@ -376,7 +732,7 @@ public class Parse {
             }
         }
         catch(IOException ex){
-            System.err.print(ex.getMessage());            
+            err.print(ex.getMessage());            
         }
         return false;
     }
@@ -415,8 +771,8 @@ public class Parse {
      */
     private void terminate(int status){
         try{            
-            rd.close();
-            if(status == 1 || secondParse){
+            if(rd != null) rd.close();
+            if(wr != null && (status == 1 || secondParse)){
                 wr.flush();
                 wr.close();
                 if(secondParse){
@@ -426,10 +782,7 @@ public class Parse {
             }
         }
         catch(IOException ex){
-            System.err.print(ex.getMessage());            
-        }
-        if(status == 1){ //stop execution on error
-            System.exit(0);
+            err.print(ex.getMessage());            
         }
     }
 
@@ -438,6 +791,7 @@ public class Parse {
      */
     private void success(){
         if(secondParse){
+            codeSize = pc;
             ArrayList<String> values =  new ArrayList<String>(vars.keySet());            
             values.removeAll(constants);
             Collections.sort(values);
@@ -449,42 +803,159 @@ public class Parse {
             Collections.sort(values);
             size = values.size();
             for(int i =0; i < size; ++i) gen(0, Integer.parseInt(values.get(i))); //initialize literals
+            dataSize = pc - codeSize;
+            if(partial > 0) fold();
             try{
+                for(int code : image) asm.write(String.format("%d\n", code));
                 asm.write("END\n"); //end of program
                 while((line = rd.readLine()) != null) asm.write(line+"\n"); //read data and append to the end of instructions
             } catch(IOException ex){}
         }        
         
-        System.out.println(String.format("Successful Parse...%d",(secondParse? 2 : 1)));
+        out.println(String.format("Successful Parse...%d",(secondParse? 2 : 1)));
         terminate(0);
     }
 
     /*
-     * terminates program on error
+     * Partial evaluation. Runs the generated code on the Simpletron until it
+     * halts, reaches its first READ, or has run the step budget and reaches the
+     * start of a statement. The code that ran is replaced by WRITEs of the values
+     * it wrote, followed by a HALT or by a JUMP to where it stopped, with the
+     * variables holding the values they had there. The accumulator and the stack
+     * are not live at the start of a statement, so nothing else needs restoring.
+     * Nothing is changed if the program does not fit in memory, if it fails or
+     * runs off the end of memory, if nothing runs, or if the result does not fit
+     * below the stack. The listing notes which of these applied.
+     */
+    private void fold() {
+        if(image.size() > 1000){
+            note("not applied, the program does not fit in memory");
+            return;
+        }
+        int words[] = new int[image.size()];
+        for(int i = 0; i < words.length; ++i) words[i] = image.get(i);
+        boolean statement[] = new boolean[1000];
+        for(int a : lines) statement[a] = true;
+        Simpletron sim = new Simpletron(words, (Input)null, null, false);
+        sim.ext = extended;
+        ArrayList<Integer> written = new ArrayList<Integer>();
+        boolean halted = false;
+        try {
+            while(true){
+                if(sim.pc() >= 1000){
+                    note("not applied, the program runs off the end of memory");
+                    return;
+                }
+                int op = sim.op();
+                if(op == HALT) halted = true;
+                if(halted || op == READ) break;
+                if(sim.steps >= partial && statement[sim.pc()]) break;
+                if(op == WRITE) written.add(sim.peek(sim.address()));
+                sim.step();
+            }
+        }
+        catch(IllegalStateException ex){
+            note("not applied, the program fails: " + ex.getMessage());
+            return;
+        }
+        int resume = sim.pc();
+        if(sim.steps == 0){
+            note("not applied, the program " + (halted ? "halts" : "reads") + " before anything runs");
+            return;
+        }
+
+        ArrayList<Integer> values = new ArrayList<Integer>(); //output values, each stored once
+        for(int v : written) if(!values.contains(v)) values.add(v);
+        int shift = written.size() + 1;
+        int size = halted ? 0 : codeSize + dataSize;
+        if(shift + size + values.size() > low){
+            note("not applied, the result does not fit in memory");
+            return;
+        }
+
+        ArrayList<Integer> folded = new ArrayList<Integer>();
+        for(int v : written) folded.add(WRITE * 1000 + shift + size + values.indexOf(v));
+        folded.add(halted ? HALT * 1000 : JUMP * 1000 + shift + resume);
+        for(int a = 0; a < size; ++a){
+            int code = sim.peek(a);
+            if(a < codeSize){ //relocate addresses of code and data, but not of the stack or immediates
+                int op = code / 1000;
+                boolean target = op >= JLT && op <= JNE;
+                if(op != HALT && op != LOADI && (op < ADDI || op > MULI) && code % 1000 < size) code += shift;
+                if(target){
+                    folded.add(code);
+                    code = sim.peek(++a) + shift;
+                }
+            }
+            folded.add(code);
+        }
+        folded.addAll(values);
+        try {
+            wr.write(String.format("\nPartial evaluation...\n%d steps run, %s at [%d], %d values written\n",
+                sim.steps, halted ? "halted" : "resuming", resume, written.size()));
+            for(int i = 0; i < folded.size(); ++i) wr.write(String.format("\t\t[%d] %d\n", i, folded.get(i)));
+        }
+        catch(IOException ex){}
+        image = folded;
+        codeSize = shift + (halted ? 0 : codeSize);
+        dataSize = folded.size() - codeSize;
+    }
+
+    private void note(String message){
+        try {
+            wr.write("\nPartial evaluation...\n" + message + "\n");
+        }
+        catch(IOException ex){}
+    }
+
+    /*
+     * reports an error and stops the parse
      */
     private void error(String message){
+        if(chunk) throw new IllegalArgumentException(message);
         try {
             wr.write("\nError: " + message);
-            System.out.println("Error: " + message);
-            System.out.println("Line: " + rd.getLineNumber());            
+            out.println("Error: " + message);
+            out.println("Line: " + rd.getLineNumber());            
         }
         catch (IOException ex) {            
         }
-        finally{
-            terminate(1);
-        }
+        terminate(1);
+        throw new Abort();
     }
 	
     public static void main(String[] args){
-        if(args.length != 3){
-            System.out.println("Usage: Parse <source> <output> <code>");
-            System.exit(0);
-        }
-        Parse p = new Parse();
-        p.parse(args[0], args[1], args[2]);
+        run(args, System.out, System.err);
 //        for(int i = 1; i < 7; ++i){
 //            p.parse("zip/s"+i+".txt", "zip/out"+i+".txt", "zip/code"+i+".txt");
 //        }
 //        System.out.println("finish");
     }
+
+    /*
+     * Compiles as the command line args ask, writing messages to out and err
+     * instead of System.out and System.err (see Daemon)
+     * @return the exit status
+     */
+    static int run(String[] args, PrintStream out, PrintStream err){
+        Parse p = new Parse(out, err);
+        boolean usage = args.length < 3;
+        try {
+            for(int i = 3; i < args.length; ++i){
+                if(args[i].equals("-x")) p.setExtended(true);
+                else if(args[i].equals("-p")) p.setPartial(Long.parseLong(args[++i]));
+                else if(args[i].equals("-j")) p.setThreads(Integer.parseInt(args[++i]));
+                else usage = true;
+            }
+        }
+        catch(RuntimeException ex){
+            usage = true;
+        }
+        if(usage){
+            out.println("Usage: Parse <source> <output> <code> [-x] [-p <steps>] [-j <threads>]");
+            return 0;
+        }
+        p.parse(args[0], args[1], args[2]);
+        return 0;
+    }
 }
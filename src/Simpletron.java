@@ -31,14 +31,31 @@ import java.io.*;
            42       Branch to given memory location if accumulator is zero
            43       Halt execution
 
+   Extended operations (only with -x), for compiled code:
+
+           22       Load the given number itself into accumulator
+           34-37    As 30-33, with the given number itself as operand
+           50-55    Compare accumulator with contents of given memory location,
+                    and branch if it is, in order, <, <=, >, >=, == or !=.
+                    The branch target is the word following the instruction;
+                    execution continues after that word if no branch is made.
+                    The comparison subtracts, and overflows as 31 does.
+
     USING MY EMULATOR OF THE SIMPLETRON
 
     The emulator is located in the file Simpletron.java
 
     The call to the file takes the form
-          java Simpletron <input>  [-v]
+          java Simpletron <input>  [-v] [-x] [-i <data> [-b]] [-c <dir>] [-nocache] [-verify]
     where <input> is the input file and -v is an optional command that leads
-    to more verbose output.
+    to more verbose output. -x enables the extended operations. -i takes the
+    values for READ from the file <data> (or standard input if it is -)
+    instead of from the input file, and -b reads them as binary ints (see
+    Input.java). -c keeps the results of runs in the directory <dir>, and
+    repeats a run by printing its kept result (see Cache.java); -nocache
+    does not, and -verify makes the run and checks the kept result.
+    Verbose runs are not cached, nor are runs whose input is standard
+    input, a pipe or a file of more than Cache.INPUT bytes.
 
     The input file for sml should consist of lines of code, followed by END,
     followed, possibly, by lines of input data.  Each line of code or data
@@ -53,11 +70,29 @@ class Simpletron{
     accum;   // for storing the results of computations
   private boolean verbose;   // provide verbose output when the emulator executes a 
            // program if and only if verbose is true
+  boolean ext;  // accept the extended operations
   Scanner sc;  // for reading the input from a file containing a program to run
                // on the emulator
+  Input in;  // where READ takes its values from
+  PrintStream out;  // where loading, READ, WRITE and verbose output go (none if null)
+  java.util.List<Integer> written;  // values written by WRITE are added here, if not null
+  long steps,  // instructions executed by run(), including the HALT
+    counts[]=new long[100];  // instructions executed by run(), by operation code
   /*Give names to each operator */
   public static final int READ=10, WRITE=11,LOAD=20,STORE=21,ADD=30,SUB=31,DIV=32,
     MUL=33,JUMP=40,JUMPL=41,JUMPZ=42,HALT=43;
+  /*Extended operators */
+  public static final int LOADI=22,ADDI=34,SUBI=35,DIVI=36,MULI=37,
+    JLT=50,JLE=51,JGT=52,JGE=53,JEQ=54,JNE=55;
+  /*Operation codes and their names, for disassembly */
+  static final int CODES[]={10,11,20,21,30,31,32,33,40,41,42,43,
+    22,34,35,36,37,50,51,52,53,54,55};
+  static final String NAMES[]={"READ", "WRITE", "LOAD","STORE","ADD","SUB","DIV","MUL",
+    "JUMP","JUMPL","JUMPZ","HALT",
+    "LOADI","ADDI","SUBI","DIVI","MULI","JLT","JLE","JGT","JGE","JEQ","JNE"};
+  /*Start of the message of a bad op code, which main reports as it always has:
+   * without "Error: " and with exit status 1 */
+  static final String BAD_OP="Bad op code: ";
   
   /*Postconditions: verbose set. The scanner sc set to head of file whose name is
    * given in input. (Exit if file not found). The contents of the file, Simpletron
@@ -66,19 +101,21 @@ class Simpletron{
    * 99999
    */
   public Simpletron(String input,boolean verb){
+    this(open(input),System.out,verb);
+  }
+  
+  /*As above, but the program and data are read from in, and output goes to o
+   * (or nowhere if o is null)
+   */
+  public Simpletron(Scanner in,PrintStream o,boolean verb){
     verbose=verb;
-    try{
-      sc=new Scanner(new FileInputStream(input));
-    }
-    catch(FileNotFoundException f){
-      System.err.println("The file '"+input+"' cannot be opened");
-      System.exit(1);
-    }
+    sc=in;
+    out=o;
     PC=0;
-    System.out.println("LOADING...");
+    print("LOADING...");
     while(PC<1000 && sc.hasNextInt()){
       memory[PC]=sc.nextInt();
-      System.out.println(PC+": "+memory[PC]);
+      print(PC+": "+memory[PC]);
       assert memory[PC]>=-99999 && memory[PC]<=99999 : "Number("+memory[PC]+
         ") is out of range [-99999, 99999]";
       sc.nextLine();
@@ -86,26 +123,155 @@ class Simpletron{
     }
     check(sc.hasNext() && sc.next().equals("END")," 'END' expected");
     sc.nextLine();
+    this.in=new Input(sc);
+  }
+  
+  /*As above, but memory is loaded with image instead, and nothing is printed
+   * while loading. READ takes its input from in.
+   */
+  public Simpletron(int image[],Scanner in,PrintStream o,boolean verb){
+    this(image,new Input(in),o,verb);
+    sc=in;
+  }
+  
+  public Simpletron(int image[],Input in,PrintStream o,boolean verb){
+    verbose=verb;
+    this.in=in;
+    out=o;
+    System.arraycopy(image,0,memory,0,Math.min(image.length,memory.length));
+  }
+  
+  private static Scanner open(String input){
+    try{
+      return new Scanner(new FileInputStream(input));
+    }
+    catch(FileNotFoundException f){
+      System.err.println("The file '"+input+"' cannot be opened");
+      System.exit(1);
+    }
+    return null;
   }
   
   public static void main(String arg[]){
-    check(arg!=null && (arg.length==1 || arg.length==2 && arg[1].equals("-v")),
-      " Usage: Simpletron <input> <output> [-v]");
-    Simpletron s=new Simpletron(arg[0],arg.length==2);
-    s.run();
+    int status=run(arg,System.in,System.out,System.err);
+    if(status!=0)
+      System.exit(status);
+  }
+  
+  /* Run as the command line arg asks, with stdin, out and err in place of
+   * System.in, System.out and System.err (see Daemon). Return the exit status.
+   */
+  static int run(String arg[],InputStream stdin,PrintStream out,PrintStream err){
+    return run(arg,stdin,out,err,null);
+  }
+  
+  /* As above, with results kept in shared (if not null) unless arg says otherwise */
+  static int run(String arg[],InputStream stdin,PrintStream out,PrintStream err,Cache shared){
+    Scanner sc=null;  // the program file, closed at the end (see Daemon)
+    Input in=null;  // the file given by -i, likewise
+    try{
+      String usage=" Usage: Simpletron <input> [-v] [-x] [-i <data> [-b]] [-c <dir>] [-nocache] [-verify]";
+      String data=null;
+      Cache cache=shared;
+      boolean verb=false,ext=false,binary=false,verify=false,nocache=false;
+      check(arg!=null && arg.length>=1,usage);
+      for(int i=1;i<arg.length;i++){
+        if(arg[i].equals("-v")) verb=true;
+        else if(arg[i].equals("-x")) ext=true;
+        else if(arg[i].equals("-b")) binary=true;
+        else if(arg[i].equals("-i") && i+1<arg.length) data=arg[++i];
+        else if(arg[i].equals("-c") && i+1<arg.length){
+          check(shared==null,"-c cannot be used here, results are kept in a shared cache");
+          cache=new Cache(Cache.MEMORY,new File(arg[++i]));
+        }
+        else if(arg[i].equals("-nocache")) nocache=true;
+        else if(arg[i].equals("-verify")) verify=true;
+        else check(false,usage);
+      }
+      check(data!=null || !binary,usage);
+      try{
+        sc=new Scanner(new FileInputStream(arg[0]));
+      }
+      catch(FileNotFoundException f){
+        err.println("The file '"+arg[0]+"' cannot be opened");
+        return 1;
+      }
+      Simpletron s=new Simpletron(sc,out,verb);
+      s.ext=ext;
+      if(data!=null){
+        try{
+          s.in=in=Input.open(data,binary,stdin);
+        }
+        catch(IOException f){
+          err.println("The file '"+data+"' cannot be opened");
+          return 1;
+        }
+      }
+      if(cache!=null && (nocache || verb || !cache.takes(data==null ? new File(arg[0]) : data.equals("-") ? null : new File(data))))
+        cache=null;
+      if(cache==null)
+        s.run();
+      else{
+        Cache.Result r=cache.run(s,verify);
+        if(out!=null)
+          out.write(r.output,0,r.output.length);
+        if(r.differed)
+          err.println("Warning: the kept result of this run differed, and has been replaced");
+        check(r.error==null,r.error);
+      }
+    }
+    catch(IllegalStateException e){
+      if(e.getMessage().startsWith(BAD_OP)){
+        err.println(e.getMessage());
+        return 1;
+      }
+      err.println("Error: "+e.getMessage());
+      return 2;
+    }
+    finally{
+      if(sc!=null)
+        sc.close();
+      if(in!=null)
+        in.close();
+    }
+    return 0;
   }
   
   /* Emulate the fetch-execute cycle in the Simpletron: get instruction, decode,
-   *   execute instruction, increment PC. 
+   *   execute instruction, increment PC. Count the instructions executed.
    * Precondition: memory loaded with Simpletron program and data
-   * Postcondition:   0<=PC<=10000 && memory[PC-1]==HALT
+   * Postcondition:   0<=PC<1000 && memory[PC]==HALT
+   * Throws IllegalStateException with the error message if the program fails.
    */
-  private void run(){
+  void run(){
     PC=0;
     accum=0;
-    while(PC<=9999 && op()!=HALT){
+    steps=0;
+    java.util.Arrays.fill(counts,0);
+    while(execute(Long.MAX_VALUE));
+  }
+  
+  /* Execute the instruction at PC, or return false if it is HALT (which is
+   * counted as executed).
+   */
+  boolean step(){
+    return execute(1);
+  }
+  
+  /* Execute up to n instructions, returning false at HALT. run() spends its time
+   * in this loop, which is kept whole so that the JIT compiles it as one.
+   */
+  private boolean execute(long n){
+    for(;n>0;n--){
+      check(PC<1000,"Execution went off top of memory");
+      int op=op();
+      if(op==HALT){
+        counts[HALT]++;
+        steps++;
+        return false;
+      }
       details();
-      switch(op()){
+      switch(op){
         case READ: doRead(); break;
         case WRITE: doWrite(); break;
         case LOAD: accum=memory[address()]; break;
@@ -119,12 +285,57 @@ class Simpletron{
         case JUMP: PC=address()-1; break;
         case JUMPL: if(accum<0) PC=address()-1; break;
         case JUMPZ: if(accum==0) PC=address()-1; break;
-        default:  System.err.println("Bad op code: "+op() + ", PC= "+PC);
-                  System.exit(1);
+        case LOADI: extended(op); accum=address(); break;
+        case ADDI: extended(op); accum+=address(); checkRange(); break;
+        case SUBI: extended(op); accum-=address(); checkRange(); break;
+        case MULI: extended(op); accum*=address(); checkRange(); break;
+        case DIVI: extended(op); check(address()!=0, "Division by zero");
+                   accum/=address();
+                   break;
+        case JLT: extended(op); branch(compare()<0); break;
+        case JLE: extended(op); branch(compare()<=0); break;
+        case JGT: extended(op); branch(compare()>0); break;
+        case JGE: extended(op); branch(compare()>=0); break;
+        case JEQ: extended(op); branch(compare()==0); break;
+        case JNE: extended(op); branch(compare()!=0); break;
+        default:  check(false,BAD_OP+op + ", PC= "+PC);
       }
+      counts[op]++;
+      steps++;
       PC++;
     }
-    check(PC<10001,"Execution went off top of memory");
+    return true;
+  }
+  
+  /* The PC, and the contents of memory at address, for callers stepping through a program */
+  int pc(){
+    return PC;
+  }
+  
+  int peek(int address){
+    return memory[address];
+  }
+  
+  /* The extended operations are bad op codes unless enabled */
+  private void extended(int op){
+    check(ext,BAD_OP+op + ", PC= "+PC);
+  }
+  
+  /* accumulator minus the contents of ADDRESS, which must be in range */
+  private int compare(){
+    int diff=accum-memory[address()];
+    check(diff>=-99999 && diff<=99999, "Accumulator overflow or underflow");
+    return diff;
+  }
+  
+  /* Branch to the address in the word after the instruction if b, else skip
+   * over that word
+   */
+  private void branch(boolean b){
+    check(PC<999,"Execution went off top of memory");
+    int target=memory[PC+1];
+    check(!b || target>=0 && target<1000,"Bad branch target: "+target+", PC= "+PC);
+    PC = b ? target-1 : PC+1;
   }
   
   /*Be sure that we have data in the accumulator in range.*/
@@ -136,24 +347,31 @@ class Simpletron{
    *  Read int from file and store in memory at location ADDRESS
    */
   private void doRead(){
-    check(sc.hasNextInt(), "Failure to read: int expected");
-    memory[address()]=sc.nextInt();
+    check(in.hasNextInt(), "Failure to read: int expected");
+    memory[address()]=in.nextInt();
     check(memory[address()]>=-99999 && memory[address()]<=9999,
       "(doRead()) number out of range [-99999,99999]");
-    System.out.println("             <==== "+memory[address()]);
+    print("             <==== "+memory[address()]);
   }
   
   private void doWrite(){
-    System.out.println("     ====> "+memory[address()]);
+    if(written!=null)
+      written.add(memory[address()]);
+    print("     ====> "+memory[address()]);
+  }
+  
+  private void print(String line){
+    if(out!=null)
+      out.println(line);
   }
   
   /* memory[PC]=xxyyy. Return xx. */
-  private int op(){
+  int op(){
     return memory[PC]/1000;
   }
   
   /* memory[PC]=xxyyy. Return yyy */
-  private int address(){
+  int address(){
     if(memory[PC]<0)
       return (-memory[PC])%1000;
     return memory[PC]%1000;
@@ -163,27 +381,22 @@ class Simpletron{
    * value of accum 
    */
   private void details(){
-    int codes[]={10,11,20,21,30,31,32,33,40,41,42,43};
-    String ops[]={"READ", "WRITE", "LOAD","STORE","ADD","SUB","DIV","MUL",
-      "JUMP","JUMPL","JUMPZ","HALT"};
     String lhs;
     int target;
     if(verbose){
       target=op();
       lhs="NO-OP";
-      for(int j=0;j<codes.length;j++)
-        if(codes[j]==target)
-           lhs=ops[j];
-      System.out.println("PC: "+PC+", val="+memory[PC]+", code: ["+lhs+" "+address()+
+      for(int j=0;j<CODES.length;j++)
+        if(CODES[j]==target)
+           lhs=NAMES[j];
+      print("PC: "+PC+", val="+memory[PC]+", code: ["+lhs+" "+address()+
                          ", accum: "+accum+']');
     }
   }
   
-  /* If b is false then detect error, display message, and quite */
+  /* If b is false then detect error and stop with message mess */
   private static void check(boolean b,String mess){
-    if(!b){
-      System.err.println("Error: "+mess);
-      System.exit(2);
-    }
+    if(!b)
+      throw new IllegalStateException(mess);
   }
 }
\ No newline at end of file